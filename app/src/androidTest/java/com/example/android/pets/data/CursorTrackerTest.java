@@ -0,0 +1,96 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.example.android.pets.data.PetContract.PetEntry;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+@RunWith(AndroidJUnit4.class)
+public class CursorTrackerTest {
+
+    private static final long GC_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Time the garbage collector gets to wrongly count a closed cursor as leaked
+     */
+    private static final long NO_LEAK_TIMEOUT_MILLIS = 2000;
+
+    private ContentResolver contentResolver;
+
+    @Before
+    public void setUp() {
+        contentResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+    }
+
+    @Test
+    public void countsLeakedCursor() {
+        int leaked = CursorTracker.getLeakedCursorCount();
+        int open = CursorTracker.getOpenCursorCount();
+
+        leakCursor();
+        assertEquals(open + 1, CursorTracker.getOpenCursorCount());
+        awaitFinalization(leaked + 1, GC_TIMEOUT_MILLIS);
+
+        assertEquals(leaked + 1, CursorTracker.getLeakedCursorCount());
+        assertEquals(open, CursorTracker.getOpenCursorCount());
+    }
+
+    @Test
+    public void doesNotCountClosedCursor() {
+        int leaked = CursorTracker.getLeakedCursorCount();
+        int open = CursorTracker.getOpenCursorCount();
+
+        closeCursor();
+        assertEquals(open, CursorTracker.getOpenCursorCount());
+        // gives a wrongly counted cursor the chance to be finalized
+        awaitFinalization(leaked + 1, NO_LEAK_TIMEOUT_MILLIS);
+
+        assertEquals(leaked, CursorTracker.getLeakedCursorCount());
+        assertEquals(open, CursorTracker.getOpenCursorCount());
+    }
+
+    /**
+     * Queries the provider and drops the cursor without closing it. Runs in a method of its
+     * own, so that no local variable keeps the cursor reachable.
+     */
+    private void leakCursor() {
+        Cursor cursor = CursorTracker.track(queryPets(), "leaked");
+        cursor.getCount();
+    }
+
+    private void closeCursor() {
+        Cursor cursor = CursorTracker.track(queryPets(), "closed");
+        cursor.getCount();
+        cursor.close();
+    }
+
+    private Cursor queryPets() {
+        Cursor cursor = contentResolver.query(PetEntry.CONTENT_URI,
+                new String[]{PetEntry._ID}, null, null, null);
+        assertNotNull(cursor);
+        return cursor;
+    }
+
+    /**
+     * Runs the garbage collector and the finalizers until the given number of leaks was
+     * counted or the timeout passed.
+     */
+    private static void awaitFinalization(int leakedCursors, long timeoutMillis) {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        while (CursorTracker.getLeakedCursorCount() < leakedCursors
+                && SystemClock.elapsedRealtime() < deadline) {
+            Runtime.getRuntime().gc();
+            System.runFinalization();
+            SystemClock.sleep(100);
+        }
+    }
+}
@@ -15,38 +15,89 @@
  */
 package com.example.android.pets;
 
-import android.app.LoaderManager;
+import android.app.AlertDialog;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.Loader;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
+import android.text.InputType;
+import android.text.TextUtils;
 import android.util.Log;
+import android.view.ActionMode;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetCursorAdapter;
+import com.example.android.pets.data.PetLoadGenerator;
+import com.example.android.pets.data.PetRepository;
+import com.example.android.pets.data.PetValidator;
+import com.example.android.pets.data.ProviderBenchmark;
+import com.example.android.pets.data.ProviderTrace;
+import com.example.android.pets.data.ShelterMaintenanceService;
+import com.example.android.pets.data.StorageBenchmark;
+import com.example.android.pets.data.TraceReplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class CatalogActivity extends AppCompatActivity {
 
     public static final String LOG_TAG = CatalogActivity.class.getSimpleName() + " TEST";
-    private static final int PET_LOADER_ID = 1;
+
+    private static final String STATE_GENDER_FILTER = "gender_filter";
+    private static final String STATE_MIN_WEIGHT = "min_weight";
+    private static final String STATE_MAX_WEIGHT = "max_weight";
+    private static final String STATE_SORT = "sort";
+
+    /**
+     * Value of the filters for showing all pets
+     */
+    private static final int ALL_GENDERS = -1;
+    private static final int ANY_WEIGHT = -1;
+
+    /**
+     * Result of parseWeight() for text that is not a valid weight
+     */
+    private static final int INVALID_WEIGHT = -2;
 
     private ListView listView;
     private PetCursorAdapter petAdapter;
 
+    // the pets of the list and the sections of the fast scroller, the repository owns the cursors
+    private PetRepository petRepository;
+    private PetRepository.Subscription petSubscription;
+    private PetRepository.Callback petCallback;
+    // the subscription of the pets on screen while the pets of new filters are loaded
+    private PetRepository.Subscription replacedPetSubscription;
+    private PetRepository.Callback replacedPetCallback;
+    private PetRepository.Subscription sectionSubscription;
+
+    // the filters and the sort order of the list, see PetEntry#PARAM_SORT
+    private int genderFilter = ALL_GENDERS;
+    private int minWeight = ANY_WEIGHT;
+    private int maxWeight = ANY_WEIGHT;
+    private String sort = PetContract.PetEntry.SORT_NAME;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -54,6 +105,13 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
 
         Log.d(LOG_TAG, "onCreate");
 
+        if (savedInstanceState != null) {
+            genderFilter = savedInstanceState.getInt(STATE_GENDER_FILTER, ALL_GENDERS);
+            minWeight = savedInstanceState.getInt(STATE_MIN_WEIGHT, ANY_WEIGHT);
+            maxWeight = savedInstanceState.getInt(STATE_MAX_WEIGHT, ANY_WEIGHT);
+            sort = savedInstanceState.getString(STATE_SORT, PetContract.PetEntry.SORT_NAME);
+        }
+
         // Get reference to list view
         listView = findViewById(R.id.listView);
 
@@ -64,8 +122,9 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         // Create cursor adapter
         petAdapter = new PetCursorAdapter(this, null);
 
-        // Attach adapter to list view
+        // Attach adapter to list view, the adapter indexes the list for the fast scroller
         listView.setAdapter(petAdapter);
+        listView.setFastScrollEnabled(true);
 
         // Attach click listener to listView
         listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
@@ -79,9 +138,13 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
-        // Prepare the loader.  Either re-connect with an existing one,
-        // or start a new one.
-        getLoaderManager().initLoader(PET_LOADER_ID, null, this);
+        // Allow selecting several pets to change or delete them all at once
+        listView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        listView.setMultiChoiceModeListener(new SelectionModeListener());
+
+        // Subscribe to the pets, the list is updated whenever they change
+        petRepository = PetRepository.getInstance(this);
+        subscribePets();
 
         // Setup FAB to open EditorActivity
         FloatingActionButton fab = findViewById(R.id.fab);
@@ -93,7 +156,33 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
+        // Back up the shelters and move their cold pets to the archive once a day
+        ShelterMaintenanceService.scheduleBackups(this);
+        ShelterMaintenanceService.scheduleArchiving(this);
+    }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Remove the adapter's references to the cursors before the repository closes them
+        petAdapter.swapCursor(null);
+        petAdapter.setSections(null);
+        petSubscription.unsubscribe();
+        if (replacedPetSubscription != null) {
+            replacedPetSubscription.unsubscribe();
+        }
+        if (sectionSubscription != null) {
+            sectionSubscription.unsubscribe();
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_GENDER_FILTER, genderFilter);
+        outState.putInt(STATE_MIN_WEIGHT, minWeight);
+        outState.putInt(STATE_MAX_WEIGHT, maxWeight);
+        outState.putString(STATE_SORT, sort);
     }
 
     @Override
@@ -104,88 +193,520 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         return true;
     }
 
+    /**
+     * Checks the menu items of the current filter and sort order.
+     */
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        switch (genderFilter) {
+            case PetContract.PetEntry.GENDER_MALE:
+                menu.findItem(R.id.filter_male).setChecked(true);
+                break;
+            case PetContract.PetEntry.GENDER_FEMALE:
+                menu.findItem(R.id.filter_female).setChecked(true);
+                break;
+            case PetContract.PetEntry.GENDER_UNKNOWN:
+                menu.findItem(R.id.filter_unknown).setChecked(true);
+                break;
+            default:
+                menu.findItem(R.id.filter_all_genders).setChecked(true);
+                break;
+        }
+        if (PetContract.PetEntry.SORT_NAME.equals(sort)) {
+            menu.findItem(R.id.sort_name).setChecked(true);
+        } else if (PetContract.PetEntry.SORT_WEIGHT.equals(sort)) {
+            menu.findItem(R.id.sort_weight).setChecked(true);
+        } else {
+            menu.findItem(R.id.sort_id).setChecked(true);
+        }
+        return true;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
+            // Respond to a click on one of the gender filters
+            case R.id.filter_all_genders:
+                setGenderFilter(ALL_GENDERS);
+                return true;
+            case R.id.filter_male:
+                setGenderFilter(PetContract.PetEntry.GENDER_MALE);
+                return true;
+            case R.id.filter_female:
+                setGenderFilter(PetContract.PetEntry.GENDER_FEMALE);
+                return true;
+            case R.id.filter_unknown:
+                setGenderFilter(PetContract.PetEntry.GENDER_UNKNOWN);
+                return true;
+            // Respond to a click on the "Weight Range" menu option
+            case R.id.action_weight_range:
+                showWeightRangeDialog();
+                return true;
+            // Respond to a click on one of the sort orders
+            case R.id.sort_id:
+                setSort(PetContract.PetEntry.SORT_ID);
+                return true;
+            case R.id.sort_name:
+                setSort(PetContract.PetEntry.SORT_NAME);
+                return true;
+            case R.id.sort_weight:
+                setSort(PetContract.PetEntry.SORT_WEIGHT);
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
-                insertPet();
+                showInsertDummyDataDialog();
                 return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
                 deleteAllPets();
                 return true;
+            // Respond to a click on the "Back up now" menu option
+            case R.id.action_backup:
+                ShelterMaintenanceService.startBackup(this);
+                return true;
+            // Respond to a click on the "Restore backup" menu option
+            case R.id.action_restore:
+                showRestoreConfirmationDialog();
+                return true;
+            // Respond to a click on the "Run Benchmark" menu option
+            case R.id.action_run_benchmark:
+                runBenchmark();
+                return true;
+            // Respond to a click on the "Run Storage Benchmark" menu option
+            case R.id.action_run_storage_benchmark:
+                runStorageBenchmark();
+                return true;
+            // Respond to a click on the "Replay Trace" menu option
+            case R.id.action_replay_trace:
+                replayTrace();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
-    private void deleteAllPets() {
-        getContentResolver().delete(PetContract.PetEntry.CONTENT_URI, null, null);
+    private void setGenderFilter(int gender) {
+        genderFilter = gender;
+        subscribePets();
+    }
+
+    private void setSort(String sort) {
+        this.sort = sort;
+        subscribePets();
+    }
+
+    /**
+     * Subscribes to the pets that pass the current filters, in the current sort order, in place
+     * of the previous subscription. The previous pets stay on screen until the new ones arrive.
+     */
+    private void subscribePets() {
+        if (replacedPetSubscription == null) {
+            replacedPetSubscription = petSubscription;
+            replacedPetCallback = petCallback;
+        } else if (petSubscription != null) {
+            // the filters changed again before the last change was loaded
+            petSubscription.unsubscribe();
+        }
+        // The filters and the sort order are part of the uri
+        String[] projection = {
+                PetContract.PetEntry._ID,
+                PetContract.PetEntry.COLUMN_PET_NAME,
+                PetContract.PetEntry.COLUMN_PET_BREED};
+        petCallback = new PetRepository.Callback() {
+            @Override
+            public void onResult(Cursor cursor) {
+                // the pets on screen are refreshed until the new ones arrive,
+                // the repository closes the cursor they replace
+                if (this == replacedPetCallback) {
+                    petAdapter.swapCursor(cursor);
+                    return;
+                } else if (this != petCallback) {
+                    return;
+                }
+                Log.d(LOG_TAG, "onResult");
+                // Update the adapter with this cursor containing updated pet data
+                // This moves the query results in the adapter, which in turn
+                // causes the listview to ask the adapter for fresh views.
+                petAdapter.swapCursor(cursor);
+                if (replacedPetSubscription != null) {
+                    replacedPetSubscription.unsubscribe();
+                    replacedPetSubscription = null;
+                    replacedPetCallback = null;
+                }
+            }
+        };
+        petSubscription = petRepository.subscribe(buildPetsUri(), projection, null, null, null, petCallback);
+        updateSections();
+    }
+
+    /**
+     * Subscribes to the sections of the fast scroller while they match the list, that is while
+     * all pets are shown in the order of their names.
+     */
+    private void updateSections() {
+        boolean filtered = genderFilter != ALL_GENDERS || minWeight != ANY_WEIGHT || maxWeight != ANY_WEIGHT;
+        if (PetContract.PetEntry.SORT_NAME.equals(sort) && !filtered) {
+            if (sectionSubscription == null) {
+                sectionSubscription = petRepository.subscribe(PetContract.PetEntry.SECTIONS_CONTENT_URI,
+                        null, null, null, null, new PetRepository.Callback() {
+                            @Override
+                            public void onResult(Cursor cursor) {
+                                petAdapter.setSections(cursor);
+                            }
+                        });
+            }
+        } else if (sectionSubscription != null) {
+            sectionSubscription.unsubscribe();
+            sectionSubscription = null;
+            petAdapter.setSections(null);
+        }
+    }
+
+    private void showWeightRangeDialog() {
+        View view = getLayoutInflater().inflate(R.layout.dialog_weight_range, null);
+        final EditText minWeightEditText = view.findViewById(R.id.edit_min_weight);
+        final EditText maxWeightEditText = view.findViewById(R.id.edit_max_weight);
+        if (minWeight != ANY_WEIGHT) {
+            minWeightEditText.setText(String.valueOf(minWeight));
+        }
+        if (maxWeight != ANY_WEIGHT) {
+            maxWeightEditText.setText(String.valueOf(maxWeight));
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_weight_range);
+        builder.setView(view);
+        builder.setPositiveButton(R.string.apply, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // An empty field removes that end of the range
+                int newMinWeight = parseWeight(minWeightEditText);
+                int newMaxWeight = parseWeight(maxWeightEditText);
+                if (newMinWeight == INVALID_WEIGHT || newMaxWeight == INVALID_WEIGHT) {
+                    return;
+                }
+                minWeight = newMinWeight;
+                maxWeight = newMaxWeight;
+                subscribePets();
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
     }
 
     /**
-     * Helper method to insert hardcoded pet data into the database. For debugging purposes only.
+     * Returns the weight in the field, {@link #ANY_WEIGHT} if the field is empty, or
+     * {@link #INVALID_WEIGHT} after telling the user why the text is not a valid weight.
      */
-    private void insertPet() {
+    private int parseWeight(EditText editText) {
+        String weight = editText.getText().toString().trim();
+        if (TextUtils.isEmpty(weight)) {
+            return ANY_WEIGHT;
+        }
+        // Check the weight against the same rules as the provider before parsing it
         ContentValues values = new ContentValues();
-        values.put(PetContract.PetEntry.COLUMN_PET_NAME, "Toto");
-        values.put(PetContract.PetEntry.COLUMN_PET_BREED, "Terrier");
-        values.put(PetContract.PetEntry.COLUMN_PET_GENDER, PetContract.PetEntry.GENDER_MALE);
-        values.put(PetContract.PetEntry.COLUMN_PET_WEIGHT, 7);
+        values.put(PetContract.PetEntry.COLUMN_PET_WEIGHT, weight);
+        PetValidator validator = PetValidator.getInstance();
+        int error = validator.validate(values, false);
+        if (error != PetValidator.VALID) {
+            Toast.makeText(this, validator.getMessage(error), Toast.LENGTH_SHORT).show();
+            return INVALID_WEIGHT;
+        }
+        return Integer.parseInt(weight);
+    }
 
-        // Insert a new row for Toto into the provider using the ContentResolver.
-        Uri newUri = getContentResolver().insert(PetContract.PetEntry.CONTENT_URI, values);
+    /**
+     * Returns the URI of the pets that pass the current filters, in the current sort order.
+     */
+    private Uri buildPetsUri() {
+        Uri uri = genderFilter == ALL_GENDERS
+                ? PetContract.PetEntry.CONTENT_URI
+                : PetContract.PetEntry.buildGenderUri(genderFilter);
+        Uri.Builder builder = uri.buildUpon();
+        if (minWeight != ANY_WEIGHT) {
+            builder.appendQueryParameter(PetContract.PetEntry.PARAM_MIN_WEIGHT, String.valueOf(minWeight));
+        }
+        if (maxWeight != ANY_WEIGHT) {
+            builder.appendQueryParameter(PetContract.PetEntry.PARAM_MAX_WEIGHT, String.valueOf(maxWeight));
+        }
+        builder.appendQueryParameter(PetContract.PetEntry.PARAM_SORT, sort);
+        return builder.build();
+    }
 
-        Log.d(LOG_TAG, "New row id = " + ContentUris.parseId(newUri));
+    private void deleteAllPets() {
+        getContentResolver().delete(PetContract.PetEntry.CONTENT_URI, null, null);
     }
 
-    @Override
-    public Loader<Cursor> onCreateLoader(int loader_id, Bundle bundle) {
-
-        switch (loader_id) {
-            case PET_LOADER_ID:
-                // Prepare the query parameters
-                Uri uri = PetContract.PetEntry.CONTENT_URI;
-                String[] projection = {
-                        PetContract.PetEntry._ID,
-                        PetContract.PetEntry.COLUMN_PET_NAME,
-                        PetContract.PetEntry.COLUMN_PET_BREED};
-
-                // This is called when a new Loader needs to be created.
-                // Defines data that we want to query from the content provider
-                return new CursorLoader(
-                        this,
-                        uri,
-                        projection,
-                        null,
-                        null,
-                        null);
-            default:
-                return null;
+    /**
+     * Applies the given values to all pets with the given ids, or deletes them if the values
+     * are null. All changes are sent to the provider as one batch, which runs in a single
+     * transaction and results in a single change notification.
+     * <p>
+     * A batch over thousands of pets takes a while, so it runs in the background, and the
+     * action mode is finished once it is done.
+     */
+    private void applyToPets(final ActionMode mode, long[] ids, ContentValues values) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            Uri uri = ContentUris.withAppendedId(PetContract.PetEntry.CONTENT_URI, id);
+            if (values == null) {
+                operations.add(ContentProviderOperation.newDelete(uri).build());
+            } else {
+                operations.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+            }
         }
+
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                try {
+                    getContentResolver().applyBatch(PetContract.CONTENT_AUTHORITY, operations);
+                    return true;
+                } catch (RemoteException | OperationApplicationException e) {
+                    Log.e(LOG_TAG, "Batch operation failed", e);
+                    return false;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Boolean success) {
+                mode.finish();
+                if (isFinishing()) {
+                    return;
+                }
+                Toast.makeText(CatalogActivity.this, getString(success
+                                ? R.string.batch_update_successful
+                                : R.string.batch_update_failed),
+                        Toast.LENGTH_SHORT).show();
+            }
+        }.execute();
     }
 
-    @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-        Log.d(LOG_TAG, "onLoadFinished");
-        // Update the adapter with this cursor containing updated pet data
-        // This moves the query results in the adapter, which in turn
-        // causes the listview to ask the adapter for fresh views
-        petAdapter.changeCursor(cursor);
+    private void showDeleteSelectedDialog(final ActionMode mode, final long[] ids) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.delete_selected_dialog_msg);
+        builder.setPositiveButton(R.string.delete, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                applyToPets(mode, ids, null);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
     }
 
     /**
-     * This is called when the data in the provider changes and the
-     * cursor becomes invalid.
-     *
-     * @param loader
+     * Asks the user to confirm the restore, which replaces every pet with the pets of the backup.
      */
-    @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        Log.d(LOG_TAG, "onLoaderReset");
-        // Remove the adapter's reference to the cursor
-        // This helps to prevent memory leaks.
-        petAdapter.swapCursor(null);
+    private void showRestoreConfirmationDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.restore_dialog_msg);
+        builder.setPositiveButton(R.string.restore, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                ShelterMaintenanceService.startRestore(CatalogActivity.this);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    private void showGenderDialog(final ActionMode mode, final long[] ids) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_set_gender);
+        // The options are in the same order as the gender constants, like in the editor spinner
+        builder.setItems(R.array.array_gender_options, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int gender) {
+                ContentValues values = new ContentValues();
+                values.put(PetContract.PetEntry.COLUMN_PET_GENDER, gender);
+                applyToPets(mode, ids, values);
+            }
+        });
+        builder.create().show();
+    }
+
+    private void showWeightDialog(final ActionMode mode, final long[] ids) {
+        final EditText weightEditText = new EditText(this);
+        weightEditText.setInputType(InputType.TYPE_CLASS_NUMBER);
+        weightEditText.setHint(R.string.hint_pet_weight);
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_set_weight);
+        builder.setView(weightEditText);
+        builder.setPositiveButton(R.string.apply, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                String weight = weightEditText.getText().toString().trim();
+                if (TextUtils.isEmpty(weight)) {
+                    return;
+                }
+                ContentValues values = new ContentValues();
+                values.put(PetContract.PetEntry.COLUMN_PET_WEIGHT, weight);
+                // Check the weight against the same rules as the provider before parsing it
+                PetValidator validator = PetValidator.getInstance();
+                int error = validator.validate(values, false);
+                if (error != PetValidator.VALID) {
+                    Toast.makeText(CatalogActivity.this, validator.getMessage(error),
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                values.put(PetContract.PetEntry.COLUMN_PET_WEIGHT, Integer.parseInt(weight));
+                applyToPets(mode, ids, values);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Compares the latency of the provider's call() methods with the equivalent queries and
+     * shows the results. For debugging purposes only.
+     */
+    private void runBenchmark() {
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                return new ProviderBenchmark(getContentResolver()).run();
+            }
+
+            @Override
+            protected void onPostExecute(String report) {
+                if (isFinishing()) {
+                    return;
+                }
+                new AlertDialog.Builder(CatalogActivity.this)
+                        .setTitle(R.string.benchmark_results_title)
+                        .setMessage(report)
+                        .setPositiveButton(android.R.string.ok, null)
+                        .show();
+            }
+        }.execute();
+    }
+
+    /**
+     * Compares the storage profiles on this device, see
+     * {@link com.example.android.pets.data.StorageBenchmark}. For debugging purposes only.
+     */
+    private void runStorageBenchmark() {
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                Bundle diagnostics = getContentResolver().call(PetContract.PetEntry.CONTENT_URI,
+                        PetContract.METHOD_DIAGNOSTICS, null, null);
+                return getString(R.string.storage_profile_in_use,
+                        diagnostics.getString(PetContract.EXTRA_RESULT),
+                        diagnostics.getLong(PetContract.EXTRA_PAGE_SIZE),
+                        diagnostics.getLong(PetContract.EXTRA_MMAP_SIZE) / 1024)
+                        + "\n" + new StorageBenchmark(CatalogActivity.this).run();
+            }
+
+            @Override
+            protected void onPostExecute(String report) {
+                if (isFinishing()) {
+                    return;
+                }
+                new AlertDialog.Builder(CatalogActivity.this)
+                        .setTitle(R.string.benchmark_results_title)
+                        .setMessage(report)
+                        .setPositiveButton(android.R.string.ok, null)
+                        .show();
+            }
+        }.execute();
+    }
+
+    /**
+     * Replays the most recent trace of provider calls, see
+     * {@link com.example.android.pets.data.TraceReplayer}. For debugging purposes only.
+     */
+    private void replayTrace() {
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                File trace = ProviderTrace.findLatestTrace(CatalogActivity.this);
+                if (trace == null) {
+                    return getString(R.string.replay_no_trace);
+                }
+                try {
+                    return new TraceReplayer(CatalogActivity.this).replay(trace);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to replay " + trace, e);
+                    return getString(R.string.replay_failed);
+                }
+            }
+
+            @Override
+            protected void onPostExecute(String report) {
+                if (isFinishing()) {
+                    return;
+                }
+                new AlertDialog.Builder(CatalogActivity.this)
+                        .setTitle(R.string.replay_results_title)
+                        .setMessage(report)
+                        .setPositiveButton(android.R.string.ok, null)
+                        .show();
+            }
+        }.execute();
+    }
+
+    /**
+     * Lets the user choose how many synthetic pets to insert, see
+     * {@link com.example.android.pets.data.PetLoadGenerator}. For debugging purposes only.
+     */
+    private void showInsertDummyDataDialog() {
+        final int[] counts = getResources().getIntArray(R.array.array_dummy_pet_counts);
+        String[] labels = new String[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            labels[i] = getResources().getQuantityString(R.plurals.dummy_pet_count, counts[i], counts[i]);
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_insert_dummy_data);
+        builder.setItems(labels, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                ShelterMaintenanceService.startGeneratePets(CatalogActivity.this,
+                        counts[which], PetLoadGenerator.DEFAULT_SEED);
+            }
+        });
+        builder.create().show();
+    }
+
+    /**
+     * Handles the contextual action bar that is shown while pets are selected in the list.
+     */
+    private class SelectionModeListener implements AbsListView.MultiChoiceModeListener {
+
+        @Override
+        public void onItemCheckedStateChanged(ActionMode mode, int position, long id, boolean checked) {
+            mode.setTitle(getString(R.string.selected_pets_title, listView.getCheckedItemCount()));
+        }
+
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.menu_catalog_selection, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            long[] ids = listView.getCheckedItemIds();
+            switch (item.getItemId()) {
+                case R.id.action_set_gender:
+                    showGenderDialog(mode, ids);
+                    return true;
+                case R.id.action_set_weight:
+                    showWeightDialog(mode, ids);
+                    return true;
+                case R.id.action_delete_selected:
+                    showDeleteSelectedDialog(mode, ids);
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+        }
     }
 }
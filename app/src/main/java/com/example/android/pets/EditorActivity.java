@@ -16,18 +16,18 @@
 package com.example.android.pets;
 
 import android.app.AlertDialog;
-import android.app.LoaderManager;
+import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AppCompatActivity;
+import android.text.Editable;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -35,29 +35,48 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.AutoCompleteTextView;
 import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.Toast;
 
+import com.example.android.pets.data.BreedSuggestionAdapter;
+import com.example.android.pets.data.DraftWriter;
+import com.example.android.pets.data.PetContract.DraftEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetRepository;
+import com.example.android.pets.data.PetValidator;
+import com.example.android.pets.data.PetVersionConflictException;
 
 /**
  * Allows user to create a new pet or edit an existing one.
  */
-public class EditorActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class EditorActivity extends AppCompatActivity {
 
     /**
      * Tag for the log messages
      */
     public static final String LOG_TAG = EditorActivity.class.getSimpleName() + " TEST";
 
-    private static final int EXISTING_PET_LOADER = 0;
+    private static final String STATE_PET_LOADED = "pet_loaded";
+    private static final String STATE_PET_VERSION = "pet_version";
+    private static final String STATE_DRAFT_PET_ID = "draft_pet_id";
 
     /**
      * Content URI for the existing pet (null if it's a new pet)
      */
     private Uri currentPetUri;
 
+    /**
+     * Version of the existing pet when it was loaded, the pet is only updated if it still
+     * has this version
+     */
+    private long currentPetVersion;
+
+    /**
+     * Whether the existing pet was already loaded into the fields
+     */
+    private boolean petLoaded = false;
 
     /**
      * EditText field to enter the pet's name
@@ -65,9 +84,9 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     private EditText nameEditText;
 
     /**
-     * EditText field to enter the pet's breed
+     * EditText field to enter the pet's breed, suggests known breeds while typing
      */
-    private EditText breedEditText;
+    private AutoCompleteTextView breedEditText;
 
     /**
      * EditText field to enter the pet's weight
@@ -82,6 +101,41 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     private boolean petHasChanged = false;
 
+    /**
+     * Autosaves the edits, so they survive a crash or the end of the process
+     */
+    private DraftWriter draftWriter;
+
+    /**
+     * Pet id of the draft, for a new pet it is unique to this editor session
+     */
+    private long draftPetId;
+
+    /**
+     * Whether the draft was already loaded into the fields
+     */
+    private boolean draftRestored = false;
+
+    // the existing pet and its draft, the repository owns the cursors
+    private PetRepository.Subscription petSubscription;
+    private PetRepository.Subscription draftSubscription;
+
+    // TextWatcher that autosaves the draft after every change of a text field
+    private TextWatcher draftTextWatcher = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            saveDraft();
+        }
+    };
+
     // OnTouchListener that listens for any user touches on a View, implying that they are modifying
     // the view, and we change the mPetHasChanged boolean to true.
     private View.OnTouchListener touchListener = new View.OnTouchListener() {
@@ -105,7 +159,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
         // Find all relevant views that we will need to read user input from
         nameEditText = (EditText) findViewById(R.id.edit_pet_name);
-        breedEditText = (EditText) findViewById(R.id.edit_pet_breed);
+        breedEditText = (AutoCompleteTextView) findViewById(R.id.edit_pet_breed);
         weightEditText = (EditText) findViewById(R.id.edit_pet_weight);
         genderSpinner = (Spinner) findViewById(R.id.spinner_gender);
 
@@ -114,8 +168,21 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         weightEditText.setOnTouchListener(touchListener);
         genderSpinner.setOnTouchListener(touchListener);
 
+        nameEditText.addTextChangedListener(draftTextWatcher);
+        breedEditText.addTextChangedListener(draftTextWatcher);
+        weightEditText.addTextChangedListener(draftTextWatcher);
+
         setupSpinner();
 
+        // Suggest breeds while the user types
+        breedEditText.setAdapter(new BreedSuggestionAdapter(this));
+
+        if (savedInstanceState != null) {
+            // The fields keep the user's edits, so keep the version they are based on as well
+            petLoaded = savedInstanceState.getBoolean(STATE_PET_LOADED);
+            currentPetVersion = savedInstanceState.getLong(STATE_PET_VERSION);
+        }
+
         // Check whether we are in edit or insert mode
         Intent intent = getIntent();
         currentPetUri = intent.getData();
@@ -126,13 +193,56 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             // Invalidate the options menu, so the "Delete" menu option can be hidden.
             // (It doesn't make sense to delete a pet that hasn't been created yet.)
             invalidateOptionsMenu();
+
+            if (savedInstanceState != null) {
+                // Bring back the edits of this session, the process may have been killed since
+                draftPetId = savedInstanceState.getLong(STATE_DRAFT_PET_ID);
+                subscribeDraft();
+            } else {
+                // A new session starts with empty fields and a draft of its own
+                draftPetId = DraftEntry.newPetDraftId();
+            }
+            draftWriter = new DraftWriter(this, draftPetId);
         } else {
+            draftPetId = ContentUris.parseId(currentPetUri);
+            draftWriter = new DraftWriter(this, draftPetId);
             // edit mode
             setTitle(R.string.edit_mode_title);
-            getLoaderManager().initLoader(EXISTING_PET_LOADER, null, this);
+            petSubscription = PetRepository.getInstance(this).subscribe(currentPetUri,
+                    null, null, null, null, new PetRepository.Callback() {
+                        @Override
+                        public void onResult(Cursor cursor) {
+                            onPetLoaded(cursor);
+                        }
+                    });
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (petSubscription != null) {
+            petSubscription.unsubscribe();
+        }
+        if (draftSubscription != null) {
+            draftSubscription.unsubscribe();
         }
     }
 
+    /**
+     * Subscribes to the draft of the pet, see restoreDraft().
+     */
+    private void subscribeDraft() {
+        draftSubscription = PetRepository.getInstance(this).subscribe(
+                DraftEntry.buildDraftUri(draftPetId),
+                null, null, null, null, new PetRepository.Callback() {
+                    @Override
+                    public void onResult(Cursor cursor) {
+                        restoreDraft(cursor);
+                    }
+                });
+    }
+
     /**
      * Setup the dropdown spinner that allows the user to select the gender of the pet.
      */
@@ -162,6 +272,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                         mGender = PetEntry.GENDER_UNKNOWN; // Unknown
                     }
                 }
+                saveDraft();
             }
 
             // Because AdapterView is an abstract class, onNothingSelected must be defined
@@ -172,6 +283,58 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         });
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_PET_LOADED, petLoaded);
+        outState.putLong(STATE_PET_VERSION, currentPetVersion);
+        outState.putLong(STATE_DRAFT_PET_ID, draftPetId);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Don't wait for the next flush, the process may be gone before that
+        draftWriter.flush();
+    }
+
+    /**
+     * Hands the current content of the fields to the draft writer, if the user changed them.
+     */
+    private void saveDraft() {
+        if (!petHasChanged || draftWriter == null) {
+            return;
+        }
+        ContentValues draft = new ContentValues();
+        draft.put(DraftEntry.COLUMN_NAME, nameEditText.getText().toString());
+        draft.put(DraftEntry.COLUMN_BREED, breedEditText.getText().toString());
+        draft.put(DraftEntry.COLUMN_WEIGHT, weightEditText.getText().toString());
+        draft.put(DraftEntry.COLUMN_GENDER, String.valueOf(mGender));
+        draftWriter.update(draft);
+    }
+
+    /**
+     * Fills the fields with the draft in the cursor, if there is one.
+     */
+    private void restoreDraft(Cursor cursor) {
+        if (draftRestored || !cursor.moveToFirst()) {
+            return;
+        }
+        draftRestored = true;
+
+        nameEditText.setText(cursor.getString(cursor.getColumnIndex(DraftEntry.COLUMN_NAME)));
+        breedEditText.setText(cursor.getString(cursor.getColumnIndex(DraftEntry.COLUMN_BREED)));
+        weightEditText.setText(cursor.getString(cursor.getColumnIndex(DraftEntry.COLUMN_WEIGHT)));
+        String gender = cursor.getString(cursor.getColumnIndex(DraftEntry.COLUMN_GENDER));
+        if (!TextUtils.isEmpty(gender)) {
+            genderSpinner.setSelection(Integer.parseInt(gender));
+        }
+
+        // The restored edits are not saved yet
+        petHasChanged = true;
+        Toast.makeText(this, getString(R.string.editor_draft_restored), Toast.LENGTH_SHORT).show();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_editor.xml file.
@@ -201,10 +364,11 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save pet to database
-                savePet();
-                // Exit activity
-                finish();
+                // Save pet to database and exit activity, unless the user has to decide
+                // about a conflicting change first
+                if (savePet()) {
+                    finish();
+                }
                 return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
@@ -228,6 +392,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                             @Override
                             public void onClick(DialogInterface dialogInterface, int i) {
                                 // User clicked "Discard" button, navigate to parent activity.
+                                draftWriter.discard();
                                 NavUtils.navigateUpFromSameTask(EditorActivity.this);
                             }
                         };
@@ -275,6 +440,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
             int deletedRows = getContentResolver().delete(currentPetUri, null, null);
             Log.d(LOG_TAG, "Deleted rows: " + deletedRows);
+            draftWriter.discard();
 
             // Show a toast message depending on whether or not the update was successful
             if (deletedRows == 0) {
@@ -290,25 +456,40 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         finish();
     }
 
-    private void savePet() {
+    /**
+     * Saves the pet, unless one of its values is invalid or it was changed by someone else
+     * while the user was editing it. In that case the user is asked whether to overwrite the
+     * other change.
+     *
+     * @return false if the activity has to stay open for the user to fix or decide.
+     */
+    private boolean savePet() {
 
         // Check whether a name is provided. If not, return.
-        if (TextUtils.isEmpty(nameEditText.getText())) return;
-
-        // If the weight is not provided by the user, don't try to parse the string into an
-        // integer value. Use 0 by default.
-        int weight = 0;
-        if (!TextUtils.isEmpty(weightEditText.getText().toString().trim())) {
-            weight = Integer.parseInt(weightEditText.getText().toString().trim());
+        if (TextUtils.isEmpty(nameEditText.getText())) {
+            draftWriter.discard();
+            return true;
         }
 
+        // If the weight is not provided by the user, use 0 by default.
+        String weight = weightEditText.getText().toString().trim();
+
         // Create a ContentValues object where column names are the keys,
         // and pet attributes from the editor are the values.
         ContentValues values = new ContentValues();
         values.put(PetEntry.COLUMN_PET_NAME, nameEditText.getText().toString().trim());
         values.put(PetEntry.COLUMN_PET_BREED, breedEditText.getText().toString().trim());
         values.put(PetEntry.COLUMN_PET_GENDER, mGender);
-        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, TextUtils.isEmpty(weight) ? "0" : weight);
+
+        // Check the values against the same rules as the provider, and let the user fix them
+        PetValidator validator = PetValidator.getInstance();
+        int error = validator.validate(values, currentPetUri == null);
+        if (error != PetValidator.VALID) {
+            Toast.makeText(this, validator.getMessage(error), Toast.LENGTH_SHORT).show();
+            return false;
+        }
+        values.put(PetEntry.COLUMN_PET_WEIGHT, Integer.parseInt(values.getAsString(PetEntry.COLUMN_PET_WEIGHT)));
 
         // Check whether we are in edit or insert mode
         if (currentPetUri == null) {
@@ -326,6 +507,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 // Otherwise, the insertion was successful and we can display a toast.
                 Toast.makeText(this, getString(R.string.editor_insert_pet_successful),
                         Toast.LENGTH_SHORT).show();
+                draftWriter.discard();
             }
         } else {
             // edit mode
@@ -335,44 +517,68 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             // because mCurrentPetUri will already identify the correct row in the database that
             // we want to modify.
 
-            // Update the existing pet
-            int updatedRows = getContentResolver().update(currentPetUri, values, null, null);
-
-            // Show a toast message depending on whether or not the update was successful
-            if (updatedRows == 0) {
-                // If the new content URI is null, then there was an error with update.
-                Toast.makeText(this, getString(R.string.editor_update_pet_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the update was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_update_pet_successful),
-                        Toast.LENGTH_SHORT).show();
+            // Update the existing pet, but only if nobody changed it since it was loaded
+            try {
+                updatePet(PetEntry.buildExpectedVersionUri(currentPetUri, currentPetVersion), values);
+            } catch (PetVersionConflictException e) {
+                Log.d(LOG_TAG, e.getMessage());
+                showUpdateConflictDialog(values);
+                return false;
             }
         }
+        return true;
     }
 
-    @Override
-    public Loader<Cursor> onCreateLoader(int loader_id, Bundle bundle) {
-        switch (loader_id) {
-            case EXISTING_PET_LOADER:
-                return new CursorLoader(
-                        this,
-                        currentPetUri,
-                        null,
-                        null,
-                        null,
-                        null);
-            default:
-                return null;
+    private void updatePet(Uri uri, ContentValues values) {
+        int updatedRows = getContentResolver().update(uri, values, null, null);
+
+        // Show a toast message depending on whether or not the update was successful
+        if (updatedRows == 0) {
+            // If the new content URI is null, then there was an error with update.
+            Toast.makeText(this, getString(R.string.editor_update_pet_failed),
+                    Toast.LENGTH_SHORT).show();
+        } else {
+            // Otherwise, the update was successful and we can display a toast.
+            Toast.makeText(this, getString(R.string.editor_update_pet_successful),
+                    Toast.LENGTH_SHORT).show();
+            draftWriter.discard();
         }
     }
 
-    @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+    private void showUpdateConflictDialog(final ContentValues values) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.update_conflict_dialog_msg);
+        builder.setPositiveButton(R.string.overwrite, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // User clicked the "Overwrite" button, so update the pet regardless of its version
+                updatePet(currentPetUri, values);
+                finish();
+            }
+        });
+        builder.setNegativeButton(R.string.discard, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // User clicked the "Discard" button, so keep the other change
+                draftWriter.discard();
+                finish();
+            }
+        });
+
+        // Create and show the AlertDialog
+        AlertDialog alertDialog = builder.create();
+        alertDialog.show();
+    }
 
-        if (cursor.getCount() == 0) return;
+    /**
+     * Fills the fields with the existing pet in the cursor.
+     */
+    private void onPetLoaded(Cursor cursor) {
+        // Only the first result fills the fields. Later results would overwrite the user's edits
+        // and the version they are based on, which would defeat the check for conflicting
+        // changes when the pet is saved.
+        if (petLoaded || cursor.getCount() == 0) return;
+        petLoaded = true;
 
-        Log.d(LOG_TAG, "onLoadFinished");
+        Log.d(LOG_TAG, "onPetLoaded");
 
         // Proceed with moving to the first row of the cursor and reading data from it
         // (This should be the only row in the cursor)
@@ -392,14 +598,12 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         weightEditText.setText(Integer.toString(cursor.getInt(genderColumnIndex)));
         int gender = cursor.getInt(genderColumnIndex);
         genderSpinner.setSelection(gender);
-    }
+        currentPetVersion = cursor.getLong(cursor.getColumnIndex(PetEntry.COLUMN_PET_VERSION));
 
-    @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        nameEditText.setText(null);
-        breedEditText.setText(null);
-        weightEditText.setText(null);
-        genderSpinner.setSelection(0);
+        // Unsaved edits of the pet go on top of the saved pet
+        if (draftSubscription == null) {
+            subscribeDraft();
+        }
     }
 
     private void showUnsavedChangesDialog(DialogInterface.OnClickListener discardButtonClickListener) {
@@ -438,6 +642,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                     @Override
                     public void onClick(DialogInterface dialogInterface, int i) {
                         // User clicked "Discard" button, close the current activity.
+                        draftWriter.discard();
                         finish();
                     }
                 };
@@ -0,0 +1,113 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import static com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link ArchiveMover} moves cold pets from the active pets table to the attached archive, so
+ * that the catalog only has to scan the pets that are still active. A pet is cold once it was
+ * adopted a while ago, or when it was not modified for a long time.
+ * <p>
+ * Pets are moved in small batches, each in its own short transaction, so that the provider
+ * keeps serving reads and writes in between.
+ */
+public class ArchiveMover {
+
+    public static final String LOG_TAG = ArchiveMover.class.getSimpleName();
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * Adopted pets go to the archive after this time without modification
+     */
+    private static final long ADOPTED_COLD_MILLIS = 30 * DAY_MILLIS;
+
+    /**
+     * Any pet goes to the archive after this time without modification
+     */
+    private static final long INACTIVE_COLD_MILLIS = 365 * DAY_MILLIS;
+
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * Pause between two batches, gives waiting writers the database connection
+     */
+    private static final long BATCH_PAUSE_MILLIS = 10;
+
+    private static final String COLD_SELECTION =
+            "(" + PetEntry.COLUMN_PET_ADOPTED + " = 1 AND " + PetEntry.COLUMN_PET_LAST_MODIFIED + " < ?1)"
+                    + " OR " + PetEntry.COLUMN_PET_LAST_MODIFIED + " < ?2";
+
+    private static final String COLD_IDS =
+            "SELECT " + PetEntry._ID + " FROM main." + PetEntry.TABLE_NAME
+                    + " WHERE " + COLD_SELECTION
+                    + " ORDER BY " + PetEntry._ID + " LIMIT " + BATCH_SIZE;
+
+    /**
+     * Moves all cold pets of the given database to its archive.
+     *
+     * @return the number of pets moved.
+     */
+    public int moveColdPets(SQLiteDatabase db) {
+        long now = System.currentTimeMillis();
+        String columns = PetsDbHelper.getPetColumnList(db);
+        SQLiteStatement copy = db.compileStatement(
+                "INSERT INTO " + PetsDbHelper.ARCHIVE_PETS_TABLE + " (" + columns + ")"
+                        + " SELECT " + columns + " FROM main." + PetEntry.TABLE_NAME
+                        + " WHERE " + PetEntry._ID + " IN (" + COLD_IDS + ")");
+        SQLiteStatement delete = db.compileStatement(
+                "DELETE FROM main." + PetEntry.TABLE_NAME
+                        + " WHERE " + PetEntry._ID + " IN (" + COLD_IDS + ")");
+
+        int total = 0;
+        try {
+            int moved;
+            do {
+                db.beginTransaction();
+                try {
+                    bindThresholds(copy, now);
+                    copy.execute();
+                    // the subquery picks the same pets again, nothing changed in between
+                    bindThresholds(delete, now);
+                    moved = delete.executeUpdateDelete();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                total += moved;
+                if (moved == BATCH_SIZE) {
+                    SystemClock.sleep(BATCH_PAUSE_MILLIS);
+                }
+            } while (moved == BATCH_SIZE);
+        } finally {
+            copy.close();
+            delete.close();
+        }
+        Log.d(LOG_TAG, "Moved " + total + " pets to the archive");
+        return total;
+    }
+
+    private static void bindThresholds(SQLiteStatement statement, long now) {
+        statement.bindLong(1, now - ADOPTED_COLD_MILLIS);
+        statement.bindLong(2, now - INACTIVE_COLD_MILLIS);
+    }
+
+    /**
+     * Moves the pet with the given id back from the archive to the active pets, so that it
+     * can be modified. Must be called inside a transaction.
+     *
+     * @return true if the pet was found in the archive.
+     */
+    static boolean restorePet(SQLiteDatabase db, long id) {
+        String columns = PetsDbHelper.getPetColumnList(db);
+        String[] args = {String.valueOf(id)};
+        db.execSQL("INSERT INTO main." + PetEntry.TABLE_NAME + " (" + columns + ")"
+                + " SELECT " + columns + " FROM " + PetsDbHelper.ARCHIVE_PETS_TABLE
+                + " WHERE " + PetEntry._ID + " = ?", args);
+        return db.delete(PetsDbHelper.ARCHIVE_PETS_TABLE, PetEntry._ID + " = ?", args) > 0;
+    }
+}
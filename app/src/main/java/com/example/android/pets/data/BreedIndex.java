@@ -0,0 +1,161 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link BreedIndex} is an in-memory prefix index of the distinct breeds of all pets, used to
+ * suggest breeds while the user types.
+ * <p>
+ * The index only holds the number of pets per breed, in a case-insensitively sorted map, so a
+ * lookup is a search for the prefix followed by a walk over the matching entries. It is loaded
+ * lazily from the provider's breeds URI on the first lookup, and grows with the number of
+ * breeds, not with the number of pets. The provider counts the breeds from its breed index.
+ * <p>
+ * When the pets change, the breeds are counted again on the index thread once no further
+ * change came for {@link #RELOAD_DELAY_MILLIS}, so a burst of changes only costs a single
+ * query, and the index never needs to know the previous breed of a pet.
+ */
+public class BreedIndex {
+
+    /**
+     * Time the index waits after a change for further changes before it loads the breeds again
+     */
+    private static final long RELOAD_DELAY_MILLIS = 500;
+
+    private static BreedIndex instance;
+
+    private final ContentResolver contentResolver;
+    private final Handler handler;
+
+    private final Runnable reload = new Runnable() {
+        @Override
+        public void run() {
+            reload();
+        }
+    };
+
+    // guarded by this, a published map is never modified
+    private NavigableMap<String, Integer> breedCounts;
+    // incremented on every change, a load that overlaps a change is not published
+    private int generation;
+
+    private BreedIndex(Context context) {
+        contentResolver = context.getApplicationContext().getContentResolver();
+
+        HandlerThread thread = new HandlerThread(BreedIndex.class.getSimpleName());
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        contentResolver.registerContentObserver(PetEntry.CONTENT_URI, true, new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onPetsChanged();
+            }
+        });
+    }
+
+    public static synchronized BreedIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new BreedIndex(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns up to limit breeds starting with the given prefix, ignoring case.
+     * May query the provider, so don't call it on the main thread.
+     */
+    public List<String> lookup(String prefix, int limit) {
+        // the map is never modified once published, so it can be searched without the lock
+        List<String> result = new ArrayList<>();
+        for (String breed : getBreedCounts().tailMap(prefix, true).keySet()) {
+            if (result.size() == limit || !breed.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                break;
+            }
+            result.add(breed);
+        }
+        return result;
+    }
+
+    private NavigableMap<String, Integer> getBreedCounts() {
+        int loadGeneration;
+        synchronized (this) {
+            if (breedCounts != null) {
+                return breedCounts;
+            }
+            loadGeneration = generation;
+        }
+        NavigableMap<String, Integer> loaded = loadBreedCounts();
+        synchronized (this) {
+            if (breedCounts != null) {
+                return breedCounts;
+            }
+            if (generation != loadGeneration) {
+                // the pets changed during the load, so the result may already be stale:
+                // answer this lookup with it, but load again for the next one
+                return loaded;
+            }
+            breedCounts = loaded;
+            return breedCounts;
+        }
+    }
+
+    /**
+     * Returns the number of pets per breed, sorted case-insensitively.
+     */
+    private NavigableMap<String, Integer> loadBreedCounts() {
+        NavigableMap<String, Integer> counts = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        Cursor cursor = contentResolver.query(PetEntry.BREEDS_CONTENT_URI,
+                new String[]{PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_BREED_COUNT}, null, null, null);
+        if (cursor == null) {
+            return counts;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                counts.put(cursor.getString(0), cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return counts;
+    }
+
+    /**
+     * Called on the index thread for every change of the pet data.
+     */
+    private void onPetsChanged() {
+        synchronized (this) {
+            generation++;
+            if (breedCounts == null) {
+                // not loaded yet, the change will be part of the next load
+                return;
+            }
+        }
+        handler.removeCallbacks(reload);
+        handler.postDelayed(reload, RELOAD_DELAY_MILLIS);
+    }
+
+    /**
+     * Counts the breeds again, on the index thread. Lookups keep using the previous breeds
+     * until the new ones are there.
+     */
+    private void reload() {
+        NavigableMap<String, Integer> loaded = loadBreedCounts();
+        // a change during the load has already scheduled the next reload
+        synchronized (this) {
+            breedCounts = loaded;
+        }
+    }
+}
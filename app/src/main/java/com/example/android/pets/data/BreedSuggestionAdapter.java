@@ -0,0 +1,92 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link BreedSuggestionAdapter} is an adapter for an AutoCompleteTextView that suggests the
+ * breeds from the {@link BreedIndex} which start with the text typed so far.
+ */
+public class BreedSuggestionAdapter extends BaseAdapter implements Filterable {
+
+    /**
+     * Maximum number of suggestions shown at once
+     */
+    private static final int MAX_SUGGESTIONS = 20;
+
+    private final Context context;
+    private final BreedIndex breedIndex;
+    private List<String> suggestions = new ArrayList<>();
+
+    public BreedSuggestionAdapter(Context context) {
+        this.context = context;
+        this.breedIndex = BreedIndex.getInstance(context);
+    }
+
+    @Override
+    public int getCount() {
+        return suggestions.size();
+    }
+
+    @Override
+    public String getItem(int position) {
+        return suggestions.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView textView = (TextView) convertView;
+        if (textView == null) {
+            textView = (TextView) LayoutInflater.from(context)
+                    .inflate(android.R.layout.simple_dropdown_item_1line, parent, false);
+        }
+        textView.setText(getItem(position));
+        return textView;
+    }
+
+    @Override
+    public Filter getFilter() {
+        return new Filter() {
+            /**
+             * Runs on a background thread of the filter.
+             */
+            @Override
+            protected FilterResults performFiltering(CharSequence constraint) {
+                FilterResults results = new FilterResults();
+                if (constraint != null && constraint.length() > 0) {
+                    List<String> matches = breedIndex.lookup(constraint.toString(), MAX_SUGGESTIONS);
+                    results.values = matches;
+                    results.count = matches.size();
+                }
+                return results;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            protected void publishResults(CharSequence constraint, FilterResults results) {
+                suggestions = results.values != null
+                        ? (List<String>) results.values
+                        : new ArrayList<String>();
+                if (results.count > 0) {
+                    notifyDataSetChanged();
+                } else {
+                    notifyDataSetInvalidated();
+                }
+            }
+        };
+    }
+}
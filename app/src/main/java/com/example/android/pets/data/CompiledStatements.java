@@ -0,0 +1,54 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link CompiledStatements} keeps compiled statements around, so that frequently used
+ * statements are only compiled once per database. Every {@link PetsDbHelper} has its own, which
+ * it closes together with its database.
+ * <p>
+ * A {@link SQLiteStatement} keeps its bindings between executions, so callers have to
+ * synchronize on the statement while binding and executing it.
+ */
+class CompiledStatements {
+
+    // guarded by this
+    private SQLiteDatabase db;
+    private final Map<String, SQLiteStatement> statements = new HashMap<>();
+
+    /**
+     * Returns the compiled statement for the given SQL, compiling it on first use.
+     */
+    synchronized SQLiteStatement get(SQLiteDatabase db, String sql) {
+        if (db != this.db) {
+            // the helper opened its database again, the statements belong to the old one
+            close();
+            this.db = db;
+        }
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Closes all statements. Every statement holds a reference to its database, which keeps
+     * the database from closing until the statement is closed.
+     */
+    synchronized void close() {
+        for (SQLiteStatement statement : statements.values()) {
+            // wait for a caller that is still executing it
+            synchronized (statement) {
+                statement.close();
+            }
+        }
+        statements.clear();
+        db = null;
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CrossProcessCursorWrapper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link CursorTracker} keeps track of the cursors returned by the provider, to find cursors
+ * that are never closed. A leaked cursor keeps its cursor window, up to 2 MB, until the
+ * garbage collector finds it.
+ * <p>
+ * Tracking is opt-in, see the track_cursors resource. Every tracked cursor remembers where
+ * it was opened. When it is finalized without being closed, the leak is logged together
+ * with that stack trace and counted, so a test can check {@link #getLeakedCursorCount()}.
+ */
+public final class CursorTracker {
+
+    public static final String LOG_TAG = CursorTracker.class.getSimpleName();
+
+    /**
+     * Default size of a cursor window. The actual size isn't public, so the window memory is
+     * estimated with this upper bound.
+     */
+    private static final long WINDOW_BYTES = 2 * 1024 * 1024;
+
+    private static final AtomicInteger openCursors = new AtomicInteger();
+    private static final AtomicInteger leakedCursors = new AtomicInteger();
+    private static final AtomicLong closedCursors = new AtomicLong();
+    private static final AtomicLong totalLifetimeMillis = new AtomicLong();
+
+    /**
+     * The open cursors, weakly referenced so that leaked cursors can still be finalized
+     */
+    private static final Map<TrackedCursor, Boolean> trackedCursors =
+            Collections.synchronizedMap(new WeakHashMap<TrackedCursor, Boolean>());
+
+    private CursorTracker() {
+    }
+
+    /**
+     * Wraps the given cursor so that its lifecycle is tracked.
+     */
+    public static Cursor track(Cursor cursor, String description) {
+        if (cursor == null) {
+            return null;
+        }
+        TrackedCursor tracked = new TrackedCursor(cursor, description);
+        openCursors.incrementAndGet();
+        trackedCursors.put(tracked, Boolean.TRUE);
+        return tracked;
+    }
+
+    /**
+     * Returns the number of tracked cursors that were neither closed nor finalized.
+     */
+    public static int getOpenCursorCount() {
+        return openCursors.get();
+    }
+
+    /**
+     * Returns the number of tracked cursors that were finalized without being closed.
+     */
+    public static int getLeakedCursorCount() {
+        return leakedCursors.get();
+    }
+
+    /**
+     * Returns an upper bound of the memory held by the windows of the open cursors.
+     */
+    public static long getEstimatedWindowBytes() {
+        long bytes = 0;
+        for (TrackedCursor cursor : snapshot()) {
+            if (cursor.hasWindow()) {
+                bytes += WINDOW_BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Logs the counters and every open cursor together with its age and where it was opened.
+     */
+    public static void dump() {
+        long closed = closedCursors.get();
+        Log.i(LOG_TAG, "open: " + getOpenCursorCount()
+                + ", leaked: " + getLeakedCursorCount()
+                + ", closed: " + closed
+                + ", average lifetime: " + (closed == 0 ? 0 : totalLifetimeMillis.get() / closed) + " ms"
+                + ", window memory: " + getEstimatedWindowBytes() / 1024 + " kB");
+        long now = SystemClock.elapsedRealtime();
+        for (TrackedCursor cursor : snapshot()) {
+            Log.i(LOG_TAG, cursor.description + " open for " + (now - cursor.openedAt) + " ms",
+                    cursor.openedBy);
+        }
+    }
+
+    private static List<TrackedCursor> snapshot() {
+        synchronized (trackedCursors) {
+            return new ArrayList<>(trackedCursors.keySet());
+        }
+    }
+
+    /**
+     * Cursor that reports its close, or its leak, to the tracker. It stays a cross process
+     * cursor, so that the provider still fills windows efficiently for other processes.
+     */
+    private static class TrackedCursor extends CrossProcessCursorWrapper {
+
+        private final String description;
+        private final long openedAt = SystemClock.elapsedRealtime();
+        private final Throwable openedBy = new Throwable("Cursor opened here");
+        private boolean closed;
+
+        TrackedCursor(Cursor cursor, String description) {
+            super(cursor);
+            this.description = description;
+        }
+
+        boolean hasWindow() {
+            Cursor cursor = getWrappedCursor();
+            return cursor instanceof AbstractWindowedCursor
+                    && ((AbstractWindowedCursor) cursor).hasWindow();
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            super.close();
+            trackedCursors.remove(this);
+            openCursors.decrementAndGet();
+            closedCursors.incrementAndGet();
+            totalLifetimeMillis.addAndGet(SystemClock.elapsedRealtime() - openedAt);
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            try {
+                boolean leaked;
+                synchronized (this) {
+                    leaked = !closed;
+                    closed = true;
+                }
+                if (leaked) {
+                    leakedCursors.incrementAndGet();
+                    openCursors.decrementAndGet();
+                    Log.e(LOG_TAG, "Cursor for " + description + " was never closed, it lived "
+                            + (SystemClock.elapsedRealtime() - openedAt) + " ms", openedBy);
+                    getWrappedCursor().close();
+                }
+            } finally {
+                super.finalize();
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import static com.example.android.pets.data.PetContract.DraftEntry;
+
+/**
+ * {@link DraftWriter} autosaves the unsaved edits of one pet as its draft, see
+ * {@link DraftEntry}.
+ * <p>
+ * Writes are buffered: every change only replaces the pending draft, and the pending draft is
+ * written at most once every {@link #FLUSH_INTERVAL_MILLIS} on a background thread. However
+ * many changes were made in between, a flush is a single provider write.
+ */
+public class DraftWriter {
+
+    /**
+     * Minimum time between two writes of the draft
+     */
+    public static final long FLUSH_INTERVAL_MILLIS = 2000;
+
+    private static Handler handler;
+
+    private final ContentResolver contentResolver;
+    private final long petId;
+
+    // guarded by this
+    private ContentValues pending;
+    private boolean flushScheduled;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ContentValues values;
+            synchronized (DraftWriter.this) {
+                values = pending;
+                pending = null;
+                flushScheduled = false;
+            }
+            if (values != null) {
+                contentResolver.insert(DraftEntry.CONTENT_URI, values);
+            }
+        }
+    };
+
+    /**
+     * Creates a writer for the draft of the pet with the given id,
+     * or an id from {@link DraftEntry#newPetDraftId()} for a new pet.
+     */
+    public DraftWriter(Context context, long petId) {
+        this.contentResolver = context.getApplicationContext().getContentResolver();
+        this.petId = petId;
+    }
+
+    /**
+     * Returns the handler of the thread that writes the drafts of all editors.
+     */
+    private static synchronized Handler getHandler() {
+        if (handler == null) {
+            HandlerThread thread = new HandlerThread(DraftWriter.class.getSimpleName());
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+
+    /**
+     * Replaces the pending draft with the given values, which are written with the next flush.
+     */
+    public synchronized void update(ContentValues draft) {
+        pending = new ContentValues(draft);
+        pending.put(DraftEntry.COLUMN_PET_ID, petId);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            getHandler().postDelayed(flushRunnable, FLUSH_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * Writes the pending draft right away, for instance when the editor goes to the background.
+     */
+    public synchronized void flush() {
+        if (pending == null) {
+            return;
+        }
+        Handler handler = getHandler();
+        handler.removeCallbacks(flushRunnable);
+        handler.post(flushRunnable);
+        flushScheduled = true;
+    }
+
+    /**
+     * Drops the pending draft and deletes the written one, once the edits were saved or
+     * discarded.
+     */
+    public synchronized void discard() {
+        pending = null;
+        flushScheduled = false;
+        Handler handler = getHandler();
+        handler.removeCallbacks(flushRunnable);
+        // runs after a flush that may already be in progress
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                contentResolver.delete(DraftEntry.buildDraftUri(petId), null, null);
+            }
+        });
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.android.pets.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -26,11 +27,142 @@ public final class PetContract {
      */
     public static final String PATH_PETS = "pets";
 
+    /**
+     * Path segment appended to a single pet's URI to look at its weight history, for instance
+     * content://com.example.android.pets/pets/3/weights/
+     */
+    public static final String PATH_WEIGHTS = "weights";
+
+    /**
+     * Path segments appended to the pets URI to look at the pets of one gender or one breed,
+     * for instance content://com.example.android.pets/pets/gender/1/ or
+     * content://com.example.android.pets/pets/breed/Terrier/
+     */
+    public static final String PATH_GENDER = "gender";
+    public static final String PATH_BREED = "breed";
+
+    /**
+     * Path segment appended to the pets URI for the alphabetical sections of the pet names,
+     * content://com.example.android.pets/pets/sections/
+     */
+    public static final String PATH_SECTIONS = "sections";
+
+    /**
+     * Path for the distinct breeds of all pets, for instance
+     * content://com.example.android.pets/breeds/
+     */
+    public static final String PATH_BREEDS = "breeds";
+
+    /**
+     * Path for the unsaved edits of the editor, for instance
+     * content://com.example.android.pets/drafts/3/ is the draft of the pet with id 3
+     */
+    public static final String PATH_DRAFTS = "drafts";
+
+    /**
+     * Path segment that routes a request to a single shelter's database, for instance
+     * content://com.example.android.pets/shelters/north/pets/ looks at the pets of the
+     * "north" shelter, while content://com.example.android.pets/shelters/pets/ looks at
+     * the pets of all shelters at once.
+     */
+    public static final String PATH_SHELTERS = "shelters";
+
+    /**
+     * Id of the shelter that is stored in the original shelter.db file and that is used by the
+     * plain {@link PetEntry#CONTENT_URI}.
+     */
+    public static final String DEFAULT_SHELTER = "default";
+
+    /**
+     * Permission other apps need to read the pets. Other apps can only read: they get a limited
+     * number of rows per query and of queries per second, and they can't see the drafts.
+     * They filter and sort with the URI parameters, such as {@link PetEntry#PARAM_SORT},
+     * instead of a selection or sort order, and can only read shelters that exist.
+     */
+    public static final String PERMISSION_READ_PETS = "com.example.android.pets.permission.READ_PETS";
+
+    /**
+     * Permission guarding writes through the provider. Writes are only accepted from this app,
+     * so the permission only keeps other apps from getting past the platform's check.
+     */
+    public static final String PERMISSION_WRITE_PETS = "com.example.android.pets.permission.WRITE_PETS";
+
+    /**
+     * Methods of the provider's call() API. They answer simple questions about the pets
+     * without the cost of building a Cursor, the answer is returned in {@link #EXTRA_RESULT}.
+     * All methods look at the default shelter, unless {@link #EXTRA_SHELTER} names another one.
+     * <ul>
+     * <li>{@link #METHOD_COUNT}: number of active pets, as long.</li>
+     * <li>{@link #METHOD_EXISTS}: whether the pet with the _id passed as arg exists, active or
+     * archived, as boolean.</li>
+     * <li>{@link #METHOD_GET_VALUE}: value of the column named in {@link #EXTRA_COLUMN} of the pet
+     * with the _id passed as arg, as string, or null if there is no such pet.</li>
+     * <li>{@link #METHOD_DIAGNOSTICS}: name of the storage profile of the shelter database, as
+     * string, together with the settings in effect in {@link #EXTRA_PAGE_SIZE} and the other
+     * diagnostics extras. Only available to this app.</li>
+     * </ul>
+     */
+    public static final String METHOD_COUNT = "count";
+    public static final String METHOD_EXISTS = "exists";
+    public static final String METHOD_GET_VALUE = "get_value";
+    public static final String METHOD_DIAGNOSTICS = "diagnostics";
+
+    // keys of the extras of the call() API
+    public static final String EXTRA_SHELTER = "shelter";
+    public static final String EXTRA_COLUMN = "column";
+    public static final String EXTRA_RESULT = "result";
+
+    // keys of the extras of the diagnostics, as read back from SQLite
+    public static final String EXTRA_PAGE_SIZE = "page_size";
+    public static final String EXTRA_CACHE_SIZE = "cache_size";
+    public static final String EXTRA_MMAP_SIZE = "mmap_size";
+    public static final String EXTRA_TEMP_STORE = "temp_store";
+
     // To prevent someone from accidentally instantiating the contract class,
     // give it an empty constructor.
     private PetContract() {
     }
 
+    /**
+     * Declares what values a column accepts. A required column must be present with a non-null
+     * value when a row is inserted; when a row is updated, it only must not be set to null.
+     * An optional column may always be null. Integer columns additionally must hold a whole
+     * number in the range from min to max, both inclusive.
+     */
+    public static final class ColumnRule {
+
+        public static final int TYPE_TEXT = 0;
+        public static final int TYPE_INTEGER = 1;
+
+        public final String column;
+        public final int type;
+        public final boolean required;
+        public final long min;
+        public final long max;
+
+        /**
+         * Describes a violation of the rule
+         */
+        public final String message;
+
+        private ColumnRule(String column, int type, boolean required, long min, long max, String message) {
+            this.column = column;
+            this.type = type;
+            this.required = required;
+            this.min = min;
+            this.max = max;
+            this.message = message;
+        }
+
+        public static ColumnRule text(String column, boolean required, String message) {
+            return new ColumnRule(column, TYPE_TEXT, required, 0, 0, message);
+        }
+
+        public static ColumnRule integer(String column, boolean required, long min, long max, String message) {
+            return new ColumnRule(column, TYPE_INTEGER, required, min, max, message);
+        }
+    }
+
     /**
      * Inner class that defines constant values for the pets database table.
      * Each entry in the table represents a single pet.
@@ -42,6 +174,30 @@ public final class PetContract {
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        /**
+         * The content URI to access the pets of all shelters at once
+         */
+        public static final Uri ALL_SHELTERS_CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_SHELTERS)
+                .appendPath(PATH_PETS)
+                .build();
+
+        /**
+         * The content URI to access the distinct, non-empty breeds of all pets, sorted
+         * case-insensitively, with the number of pets per breed. Breeds that only differ in
+         * case are counted together. The columns are {@link #COLUMN_PET_BREED} and
+         * {@link #COLUMN_BREED_COUNT}.
+         */
+        public static final Uri BREEDS_CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_BREEDS);
+
+        /**
+         * The content URI to access the sections of the active pets sorted by name: one row per
+         * first letter of the names (ignoring case) with the number of pets in it, in the
+         * order of {@link #SORT_NAME}. The columns are {@link #COLUMN_SECTION} and
+         * {@link #COLUMN_SECTION_COUNT}.
+         */
+        public static final Uri SECTIONS_CONTENT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SECTIONS);
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of pets.
          */
@@ -54,9 +210,24 @@ public final class PetContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS;
 
+        /**
+         * The MIME type of the {@link #BREEDS_CONTENT_URI}.
+         */
+        public static final String CONTENT_BREEDS_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_BREEDS;
+
+        /**
+         * The MIME type of the {@link #SECTIONS_CONTENT_URI}.
+         */
+        public static final String CONTENT_SECTIONS_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SECTIONS;
+
         // table name
         public static final String TABLE_NAME = "pets";
 
+        // table of the name sections, kept up to date by triggers on the pets table
+        public static final String SECTIONS_TABLE_NAME = "pet_sections";
+
         // column names
         public static final String _ID = BaseColumns._ID;
         public static final String COLUMN_PET_NAME = "name";
@@ -64,13 +235,234 @@ public final class PetContract {
         public static final String COLUMN_PET_WEIGHT = "weight";
         public static final String COLUMN_PET_GENDER = "gender";
 
+        // 1 once the pet was adopted, 0 otherwise
+        public static final String COLUMN_PET_ADOPTED = "adopted";
+        // time of the last write of the pet in milliseconds since the epoch, set by the provider
+        public static final String COLUMN_PET_LAST_MODIFIED = "last_modified";
+        // incremented by the provider on every update of the pet, starts at 1
+        public static final String COLUMN_PET_VERSION = "version";
+
+        // column names of the sections
+        public static final String COLUMN_SECTION = "section";
+        public static final String COLUMN_SECTION_COUNT = "count";
+
+        // column name of the number of pets per breed
+        public static final String COLUMN_BREED_COUNT = "count";
+
+        // id of the shelter a row comes from, only present in cross-shelter query results
+        public static final String COLUMN_SHELTER = "shelter";
+
+        // id of the pet within its shelter, only present in cross-shelter query results, where
+        // the _id is made unique across the shelters
+        public static final String COLUMN_SHELTER_PET_ID = "shelter_pet_id";
+
         // values for the gender column
         public static final int GENDER_MALE = 1;
         public static final int GENDER_FEMALE = 2;
         public static final int GENDER_UNKNOWN = 0;
 
+        /**
+         * Query parameter for {@link #CONTENT_URI}: set it to "true" to include the pets that
+         * were moved to the archive. By default only the active pets are queried, a single pet
+         * is always found, archived or not.
+         */
+        public static final String PARAM_INCLUDE_ARCHIVED = "include_archived";
+
+        /**
+         * Query parameters for {@link #CONTENT_URI} and the gender and breed URIs: they limit
+         * the weight range of the pets (both inclusive) and choose one of the sort orders
+         * {@link #SORT_ID}, {@link #SORT_NAME} or {@link #SORT_WEIGHT}. The provider runs a
+         * fixed, index backed query for these, so a selection or a sort order can't be passed
+         * together with them.
+         */
+        public static final String PARAM_MIN_WEIGHT = "minWeight";
+        public static final String PARAM_MAX_WEIGHT = "maxWeight";
+        public static final String PARAM_SORT = "sort";
+
+        // values for the sort parameter
+        public static final String SORT_ID = "id";
+        public static final String SORT_NAME = "name";
+        public static final String SORT_WEIGHT = "weight";
+
+        /**
+         * Returns the content URI to access the pets of the given gender.
+         */
+        public static Uri buildGenderUri(int gender) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_GENDER)
+                    .appendPath(String.valueOf(gender))
+                    .build();
+        }
+
+        /**
+         * Returns the content URI to access the pets of the given breed, ignoring case.
+         */
+        public static Uri buildBreedUri(String breed) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_BREED)
+                    .appendPath(breed)
+                    .build();
+        }
+
+        /**
+         * Query parameter for the URI of a single pet: the update is only applied if the pet
+         * still has this {@link #COLUMN_PET_VERSION}. Otherwise the provider throws a
+         * {@link PetVersionConflictException} and changes nothing.
+         */
+        public static final String PARAM_EXPECTED_VERSION = "expected_version";
+
+        /**
+         * Returns the URI of the given pet for an update that only applies if the pet still
+         * has the given version, see {@link #PARAM_EXPECTED_VERSION}.
+         */
+        public static Uri buildExpectedVersionUri(Uri petUri, long version) {
+            return petUri.buildUpon()
+                    .appendQueryParameter(PARAM_EXPECTED_VERSION, String.valueOf(version))
+                    .build();
+        }
+
+        /**
+         * Returns the content URI to access the pets of the shelter with the given id.
+         */
+        public static Uri buildShelterUri(String shelterId) {
+            return BASE_CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SHELTERS)
+                    .appendPath(shelterId)
+                    .appendPath(PATH_PETS)
+                    .build();
+        }
+
+        /**
+         * The rules every written pet has to follow, see {@link PetValidator}. Columns without
+         * a rule accept any value.
+         */
+        public static final ColumnRule[] COLUMN_RULES = {
+                ColumnRule.text(COLUMN_PET_NAME, true, "Pet requires a name"),
+                ColumnRule.integer(COLUMN_PET_GENDER, true, GENDER_UNKNOWN, GENDER_FEMALE,
+                        "Pet requires a valid gender"),
+                ColumnRule.integer(COLUMN_PET_WEIGHT, false, 0, Integer.MAX_VALUE,
+                        "Pet requires valid weight"),
+                ColumnRule.integer(COLUMN_PET_ADOPTED, false, 0, 1, "Pet requires a valid adopted flag")};
+
         public static boolean isValidGender(Integer gender) {
             return gender == PetEntry.GENDER_UNKNOWN || gender == PetEntry.GENDER_MALE || gender == PetEntry.GENDER_FEMALE;
         }
     }
+
+    /**
+     * Inner class that defines constant values for the weight history of the pets.
+     * Each entry in the table is one weight measurement of one pet. A measurement is recorded
+     * by the provider whenever a pet is written with a new weight.
+     * <p>
+     * The history of a pet is read through {@link #buildWeightsUri(Uri)}. The query parameters
+     * {@link #PARAM_FROM} and {@link #PARAM_TO} limit the time range (in milliseconds since the
+     * epoch, both inclusive), {@link #PARAM_RESOLUTION} selects the raw measurements or one of
+     * the daily, weekly or monthly rollups. Every row of the result has the columns
+     * {@link #COLUMN_TIMESTAMP}, {@link #COLUMN_WEIGHT} (the average for rollups),
+     * {@link #COLUMN_MIN_WEIGHT}, {@link #COLUMN_MAX_WEIGHT} and {@link #COLUMN_COUNT}.
+     */
+    public static abstract class WeightEntry {
+
+        /**
+         * The MIME type of the weight history of a pet.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_WEIGHTS;
+
+        // table names
+        public static final String TABLE_NAME = "weights";
+        public static final String ROLLUP_TABLE_NAME = "weight_rollups";
+
+        // column names of the measurements table
+        public static final String COLUMN_PET_ID = "pet_id";
+        public static final String COLUMN_TIMESTAMP = "timestamp";
+        public static final String COLUMN_WEIGHT = "weight";
+
+        // column names of the rollups table
+        public static final String COLUMN_RESOLUTION = "resolution";
+        public static final String COLUMN_BUCKET_START = "bucket_start";
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_SUM = "sum";
+        public static final String COLUMN_MIN_WEIGHT = "min_weight";
+        public static final String COLUMN_MAX_WEIGHT = "max_weight";
+
+        // query parameters of the weights uri
+        public static final String PARAM_FROM = "from";
+        public static final String PARAM_TO = "to";
+        public static final String PARAM_RESOLUTION = "resolution";
+
+        // values for the resolution parameter, buckets are aligned to UTC
+        public static final String RESOLUTION_RAW = "raw";
+        public static final String RESOLUTION_DAY = "day";
+        public static final String RESOLUTION_WEEK = "week";
+        public static final String RESOLUTION_MONTH = "month";
+
+        /**
+         * Returns the URI of the weight history of the pet with the given content URI.
+         */
+        public static Uri buildWeightsUri(Uri petUri) {
+            return Uri.withAppendedPath(petUri, PATH_WEIGHTS);
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the drafts table. Each entry holds the
+     * unsaved edits of one pet, exactly as they were entered in the editor, so that they
+     * survive a crash or the end of the process. The drafts of new pets have negative pet ids,
+     * one per editor session, see {@link #newPetDraftId()}, so that two editors of new pets
+     * don't overwrite each other's draft.
+     * <p>
+     * Drafts live in the default shelter. A draft is written with insert (which replaces the
+     * previous draft of the pet) and its changes are not notified, as only the editor that
+     * wrote it ever reads it back.
+     */
+    public static abstract class DraftEntry {
+
+        /**
+         * The content URI to write drafts to
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_DRAFTS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of drafts.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_DRAFTS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single draft.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_DRAFTS;
+
+        public static final String TABLE_NAME = "drafts";
+
+        // column names, all values but the pet id are kept as text
+        public static final String COLUMN_PET_ID = "pet_id";
+        public static final String COLUMN_NAME = "name";
+        public static final String COLUMN_BREED = "breed";
+        public static final String COLUMN_GENDER = "gender";
+        public static final String COLUMN_WEIGHT = "weight";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+        // last pet id handed out by newPetDraftId(), guarded by DraftEntry.class
+        private static long lastNewPetDraftId;
+
+        /**
+         * Returns the pet id for the draft of a new pet, unique to the editor session. Keep it
+         * in the saved instance state to find the draft again after the process was killed.
+         * The ids are negative, so they never collide with saved pets.
+         */
+        public static synchronized long newPetDraftId() {
+            lastNewPetDraftId = Math.min(-System.currentTimeMillis(), lastNewPetDraftId - 1);
+            return lastNewPetDraftId;
+        }
+
+        /**
+         * Returns the URI of the draft of the pet with the given id.
+         */
+        public static Uri buildDraftUri(long petId) {
+            return ContentUris.withAppendedId(CONTENT_URI, petId);
+        }
+    }
 }
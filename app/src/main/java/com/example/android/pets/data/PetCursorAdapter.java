@@ -7,22 +7,92 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.example.android.pets.R;
 
+import java.util.Arrays;
+import java.util.Locale;
 
 /**
  * {@link PetCursorAdapter} is an adapter for a list or grid view
  * that uses a {@link Cursor} of pet data as its data source. This adapter knows
  * how to create list items for each row of pet data in the {@link Cursor}.
+ * <p>
+ * When the pets are sorted by name, the adapter also indexes the list by the first letter of
+ * the names, for fast scrolling. The sections are read from
+ * {@link PetContract.PetEntry#SECTIONS_CONTENT_URI}, so the index doesn't scan the pets.
+ * The sections only label the fast scroller, the list itself has no header rows.
  */
-public class PetCursorAdapter extends CursorAdapter {
+public class PetCursorAdapter extends CursorAdapter implements SectionIndexer {
+
+    private static final String[] NO_SECTIONS = new String[0];
+
+    private String[] sections = NO_SECTIONS;
+
+    /**
+     * Position of the first pet of every section, in the order of the sections
+     */
+    private int[] sectionPositions = new int[0];
 
     public PetCursorAdapter(Context context, Cursor c) {
         super(context, c, 0);
     }
 
+    /**
+     * Sets the sections from a cursor with the section and count columns of
+     * {@link PetContract.PetEntry#SECTIONS_CONTENT_URI}, or clears them if the cursor is null.
+     */
+    public void setSections(Cursor cursor) {
+        if (cursor == null || cursor.getCount() == 0) {
+            sections = NO_SECTIONS;
+            sectionPositions = new int[0];
+        } else {
+            int sectionIndex = cursor.getColumnIndex(PetContract.PetEntry.COLUMN_SECTION);
+            int countIndex = cursor.getColumnIndex(PetContract.PetEntry.COLUMN_SECTION_COUNT);
+            String[] newSections = new String[cursor.getCount()];
+            int[] newPositions = new int[cursor.getCount()];
+            int position = 0;
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                int i = cursor.getPosition();
+                String section = cursor.getString(sectionIndex);
+                newSections[i] = TextUtils.isEmpty(section) ? "#" : section.toUpperCase(Locale.getDefault());
+                newPositions[i] = position;
+                position += cursor.getInt(countIndex);
+            }
+            sections = newSections;
+            sectionPositions = newPositions;
+        }
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public Object[] getSections() {
+        return sections;
+    }
+
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        if (sectionPositions.length == 0) {
+            return 0;
+        }
+        int index = Math.max(0, Math.min(sectionIndex, sectionPositions.length - 1));
+        // the sections may briefly be ahead of the pets while both are reloaded
+        return Math.min(sectionPositions[index], Math.max(0, getCount() - 1));
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        if (sectionPositions.length == 0) {
+            return 0;
+        }
+        int index = Arrays.binarySearch(sectionPositions, position);
+        // a position inside a section belongs to the section that starts before it
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
     /**
      * Makes a new blank list item view. No data is set (or bound) to the views yet.
      *
@@ -0,0 +1,202 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link PetLoadGenerator} fills a shelter with synthetic pets, to get tables of production
+ * size for performance tests. For debugging purposes only, don't run it on the main thread.
+ * <p>
+ * The pets are generated in chunks on several threads and written through the provider's
+ * batch path, one chunk per batch. Every chunk has its own random generator, seeded from the
+ * seed of the run and the number of the chunk, so the same seed always generates the same
+ * pets in the same order, no matter how the threads are scheduled.
+ */
+public class PetLoadGenerator {
+
+    public static final String LOG_TAG = PetLoadGenerator.class.getSimpleName();
+
+    /**
+     * Seed used when the caller doesn't ask for another one
+     */
+    public static final long DEFAULT_SEED = 42;
+
+    /**
+     * Number of pets per batch
+     */
+    private static final int CHUNK_SIZE = 1000;
+
+    /**
+     * Chunks generated ahead of the writer, limits the memory used by waiting chunks
+     */
+    private static final int CHUNKS_AHEAD = 4;
+
+    private static final int GENERATOR_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    /**
+     * The distributions the values of the generated pets are drawn from. The defaults follow
+     * a typical shelter: few names and breeds are very common, most are rare.
+     */
+    public static class Distributions {
+
+        public String[] names = {"Bella", "Max", "Luna", "Charlie", "Lucy", "Cooper", "Daisy",
+                "Milo", "Bailey", "Buddy", "Molly", "Rocky", "Coco", "Tucker", "Lola", "Toto",
+                "Oliver", "Sadie", "Bear", "Zoe", "Duke", "Stella", "Leo", "Penny", "Jack"};
+
+        /**
+         * Relative frequency of each name, null for a Zipf distribution over the names
+         */
+        public double[] nameWeights = null;
+
+        public String[] breeds = {"Mixed", "Labrador Retriever", "Terrier", "German Shepherd",
+                "Tabby", "Siamese", "Beagle", "Poodle", "Bulldog", "Maine Coon", "Boxer",
+                "Persian", "Dachshund", "Husky", "Chihuahua", "Ragdoll", "Border Collie"};
+
+        /**
+         * Relative frequency of each breed, null for a Zipf distribution over the breeds
+         */
+        public double[] breedWeights = null;
+
+        /**
+         * Relative frequency of unknown, male and female pets, in the order of the gender constants
+         */
+        public double[] genderWeights = {0.1, 0.45, 0.45};
+
+        /**
+         * Weights are normally distributed around the mean, negative weights become 0
+         */
+        public double meanWeight = 12;
+        public double weightStandardDeviation = 8;
+    }
+
+    private final ContentResolver contentResolver;
+    private final Distributions distributions;
+
+    public PetLoadGenerator(ContentResolver contentResolver) {
+        this(contentResolver, new Distributions());
+    }
+
+    public PetLoadGenerator(ContentResolver contentResolver, Distributions distributions) {
+        this.contentResolver = contentResolver;
+        this.distributions = distributions;
+    }
+
+    /**
+     * Generates the given number of pets and inserts them into the shelter of the given URI,
+     * for instance {@link PetEntry#CONTENT_URI}.
+     *
+     * @return the number of pets inserted.
+     */
+    public int generate(final Uri shelterUri, int count, long seed) {
+        final double[] nameCumulative = cumulative(distributions.nameWeights, distributions.names.length);
+        final double[] breedCumulative = cumulative(distributions.breedWeights, distributions.breeds.length);
+        final double[] genderCumulative = cumulative(distributions.genderWeights, distributions.genderWeights.length);
+
+        long start = SystemClock.elapsedRealtime();
+        int chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int inserted = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(GENERATOR_THREADS);
+        Queue<Future<ArrayList<ContentProviderOperation>>> pending = new ArrayDeque<>();
+        try {
+            int nextChunk = 0;
+            while (nextChunk < chunks || !pending.isEmpty()) {
+                // keep the generator threads busy while the chunks are written in order
+                while (nextChunk < chunks && pending.size() < CHUNKS_AHEAD) {
+                    final int size = Math.min(CHUNK_SIZE, count - nextChunk * CHUNK_SIZE);
+                    final Random random = new Random(seed * 31 + nextChunk);
+                    pending.add(executor.submit(new Callable<ArrayList<ContentProviderOperation>>() {
+                        @Override
+                        public ArrayList<ContentProviderOperation> call() {
+                            return generateChunk(shelterUri, size, random,
+                                    nameCumulative, breedCumulative, genderCumulative);
+                        }
+                    }));
+                    nextChunk++;
+                }
+                ArrayList<ContentProviderOperation> operations = pending.remove().get();
+                contentResolver.applyBatch(PetContract.CONTENT_AUTHORITY, operations);
+                inserted += operations.size();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.e(LOG_TAG, "Interrupted after " + inserted + " pets");
+        } catch (ExecutionException | RemoteException | OperationApplicationException e) {
+            Log.e(LOG_TAG, "Failed after " + inserted + " pets", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        Log.d(LOG_TAG, "Inserted " + inserted + " pets in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+        return inserted;
+    }
+
+    private ArrayList<ContentProviderOperation> generateChunk(Uri uri, int size, Random random,
+                                                             double[] nameCumulative,
+                                                             double[] breedCumulative,
+                                                             double[] genderCumulative) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int weight = (int) Math.round(distributions.meanWeight
+                    + random.nextGaussian() * distributions.weightStandardDeviation);
+            operations.add(ContentProviderOperation.newInsert(uri)
+                    .withValue(PetEntry.COLUMN_PET_NAME, distributions.names[pick(nameCumulative, random)])
+                    .withValue(PetEntry.COLUMN_PET_BREED, distributions.breeds[pick(breedCumulative, random)])
+                    .withValue(PetEntry.COLUMN_PET_GENDER, pick(genderCumulative, random))
+                    .withValue(PetEntry.COLUMN_PET_WEIGHT, Math.max(0, weight))
+                    .build());
+        }
+        return operations;
+    }
+
+    /**
+     * Returns the normalized cumulative distribution of the given weights,
+     * or of a Zipf distribution over count values if there are no weights.
+     */
+    private static double[] cumulative(double[] weights, int count) {
+        double[] result = new double[count];
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += weights != null ? weights[i] : 1.0 / (i + 1);
+            result[i] = sum;
+        }
+        for (int i = 0; i < count; i++) {
+            result[i] /= sum;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index of a value drawn from the given cumulative distribution.
+     */
+    private static int pick(double[] cumulative, Random random) {
+        double value = random.nextDouble();
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulative[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -1,17 +1,56 @@
 package com.example.android.pets.data;
 
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.example.android.pets.R;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import static com.example.android.pets.data.PetContract.CONTENT_AUTHORITY;
+import static com.example.android.pets.data.PetContract.DraftEntry;
+import static com.example.android.pets.data.PetContract.PATH_BREED;
+import static com.example.android.pets.data.PetContract.PATH_BREEDS;
+import static com.example.android.pets.data.PetContract.PATH_DRAFTS;
+import static com.example.android.pets.data.PetContract.PATH_GENDER;
 import static com.example.android.pets.data.PetContract.PATH_PETS;
+import static com.example.android.pets.data.PetContract.PATH_SECTIONS;
+import static com.example.android.pets.data.PetContract.PATH_SHELTERS;
+import static com.example.android.pets.data.PetContract.PATH_WEIGHTS;
 import static com.example.android.pets.data.PetContract.PetEntry;
+import static com.example.android.pets.data.PetContract.WeightEntry;
 
 /**
  * ContentProvider for Pets app
@@ -26,23 +65,132 @@ public class PetProvider extends ContentProvider {
 
     private static final int PETS = 100;
     private static final int PET_ID = 101;
+    private static final int BREEDS = 102;
+    private static final int PET_WEIGHTS = 103;
+    private static final int PETS_BY_GENDER = 104;
+    private static final int PETS_BY_BREED = 105;
+    private static final int DRAFTS = 106;
+    private static final int DRAFT_ID = 107;
+    private static final int PET_SECTIONS = 108;
+    private static final int SHELTER_PETS = 200;
+    private static final int SHELTER_PET_ID = 201;
+    private static final int ALL_SHELTERS_PETS = 202;
+    private static final int SHELTER_PET_WEIGHTS = 203;
+
+    /**
+     * Number of threads that query the shelter databases in parallel
+     */
+    private static final int FAN_OUT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Columns that can be read with {@link PetContract#METHOD_GET_VALUE} and projected by the
+     * filter and sort routes
+     */
+    private static final Set<String> VALUE_COLUMNS = new HashSet<>(Arrays.asList(
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_ADOPTED,
+            PetEntry.COLUMN_PET_LAST_MODIFIED,
+            PetEntry.COLUMN_PET_VERSION));
+
+    private static final String SQL_COUNT =
+            "SELECT COUNT(*) FROM main." + PetEntry.TABLE_NAME;
+
+    private static final String SQL_EXISTS =
+            "SELECT EXISTS (SELECT 1 FROM main." + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " = ?1)"
+                    + " OR EXISTS (SELECT 1 FROM " + PetsDbHelper.ARCHIVE_PETS_TABLE
+                    + " WHERE " + PetEntry._ID + " = ?1)";
 
     private static final UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     static {
         uriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS, PETS);
         uriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS + "/#", PET_ID);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_BREEDS, BREEDS);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS + "/#/" + PATH_WEIGHTS, PET_WEIGHTS);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS + "/" + PATH_GENDER + "/#", PETS_BY_GENDER);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS + "/" + PATH_BREED + "/*", PETS_BY_BREED);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS + "/" + PATH_SECTIONS, PET_SECTIONS);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_DRAFTS, DRAFTS);
+        // the drafts of new pets have negative ids, which "#" doesn't match
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_DRAFTS + "/*", DRAFT_ID);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/*/" + PATH_PETS, SHELTER_PETS);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/*/" + PATH_PETS + "/#", SHELTER_PET_ID);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/" + PATH_PETS, ALL_SHELTERS_PETS);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/*/" + PATH_PETS + "/#/" + PATH_WEIGHTS,
+                SHELTER_PET_WEIGHTS);
     }
 
 
-    private PetsDbHelper petsDbHelper;
+    private ShelterDatabases shelterDatabases;
+    private ExecutorService fanOutExecutor;
+    private boolean trackCursors;
+    private ProviderAdmission admission;
+
+    /**
+     * Cancels the queries of other apps that run past their deadline. It runs on a thread of
+     * its own, so that the deadline holds even while the main thread is busy.
+     */
+    private Handler deadlineHandler;
+
+    /**
+     * Records the calls to the provider if recording is enabled, otherwise null
+     */
+    private ProviderTrace trace;
+
+    /**
+     * URIs changed by the batch that is running on the current thread, null outside of a batch
+     */
+    private final ThreadLocal<Set<Uri>> batchChanges = new ThreadLocal<>();
 
     @Override
     public boolean onCreate() {
-        petsDbHelper = new PetsDbHelper(getContext());
+        shelterDatabases = ShelterDatabases.getInstance(getContext());
+        fanOutExecutor = Executors.newFixedThreadPool(FAN_OUT_THREADS);
+        HandlerThread deadlineThread = new HandlerThread(PetProvider.class.getSimpleName() + "Deadlines");
+        deadlineThread.start();
+        deadlineHandler = new Handler(deadlineThread.getLooper());
+        admission = new ProviderAdmission(getContext().getPackageManager());
+        trackCursors = getContext().getResources().getBoolean(R.bool.track_cursors);
+        if (getContext().getResources().getBoolean(R.bool.record_trace)) {
+            trace = ProviderTrace.start(getContext());
+        }
         return true;
     }
 
+    /**
+     * Returns the helper of the shelter database the given URI is routed to.
+     * URIs without a shelter segment go to the default shelter.
+     *
+     * @throws IllegalArgumentException if the shelter doesn't exist.
+     */
+    private PetsDbHelper getDbHelper(Uri uri, int match) {
+        return shelterDatabases.getHelper(getShelterId(uri, match));
+    }
+
+    /**
+     * Returns the helper of the shelter database the given URI is routed to, like
+     * {@link #getDbHelper(Uri, int)}, and creates the shelter on first write. Only writes,
+     * which are restricted to this app, may create shelters.
+     */
+    private PetsDbHelper getOrCreateDbHelper(Uri uri, int match) {
+        return shelterDatabases.getOrCreateHelper(getShelterId(uri, match));
+    }
+
+    private static String getShelterId(Uri uri, int match) {
+        switch (match) {
+            case SHELTER_PETS:
+            case SHELTER_PET_ID:
+            case SHELTER_PET_WEIGHTS:
+                return uri.getPathSegments().get(1);
+            default:
+                return PetContract.DEFAULT_SHELTER;
+        }
+    }
+
     /**
      * Perform the query for the given URI.
      * Use the given projection, selection, selection arguments, and sort order.
@@ -50,35 +198,281 @@ public class PetProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        long start = System.nanoTime();
+        try {
+            return queryAdmitted(uri, projection, selection, selectionArgs, sortOrder, null);
+        } finally {
+            trace(ProviderTrace.OP_QUERY, uri, projection, selection, selectionArgs, sortOrder, null, 0, start);
+        }
+    }
 
-        SQLiteDatabase db = petsDbHelper.getReadableDatabase();
+    /**
+     * Perform the query for the given URI, like the query above. The query is abandoned, also
+     * in the middle of a scan, as soon as the cancellation signal is triggered (for instance by
+     * a CursorLoader whose result is no longer needed).
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        long start = System.nanoTime();
+        try {
+            return queryAdmitted(uri, projection, selection, selectionArgs, sortOrder,
+                    cancellationSignal);
+        } finally {
+            trace(ProviderTrace.OP_QUERY, uri, projection, selection, selectionArgs, sortOrder, null, 0, start);
+        }
+    }
+
+    /**
+     * Runs the query once it is admitted, see {@link ProviderAdmission}. Other apps get at most
+     * {@link ProviderAdmission#MAX_EXTERNAL_ROWS} rows per shelter, can't read the drafts and
+     * only run the SQL the provider builds itself, see {@link #checkExternalQuery}. Their
+     * queries are cancelled after {@link ProviderAdmission#MAX_EXTERNAL_QUERY_MILLIS}.
+     */
+    @SuppressLint("NewApi")
+    private Cursor queryAdmitted(Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder,
+                                 CancellationSignal cancellationSignal) {
+        int uid = Binder.getCallingUid();
+        boolean external = admission.isExternal(uid);
+        String limit = null;
+        CancellationSignal callerSignal = null;
+        Runnable deadline = null;
+        if (external) {
+            checkExternalQuery(uri, uriMatcher.match(uri), projection, selection, sortOrder);
+            admission.enterExternal(uid);
+            limit = String.valueOf(ProviderAdmission.MAX_EXTERNAL_ROWS);
+            // SQLite queries can only be cancelled from API 16 on
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                final CancellationSignal deadlineSignal = new CancellationSignal();
+                callerSignal = cancellationSignal;
+                if (callerSignal != null) {
+                    callerSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                        @Override
+                        public void onCancel() {
+                            deadlineSignal.cancel();
+                        }
+                    });
+                }
+                deadline = new Runnable() {
+                    @Override
+                    public void run() {
+                        deadlineSignal.cancel();
+                    }
+                };
+                deadlineHandler.postDelayed(deadline, ProviderAdmission.MAX_EXTERNAL_QUERY_MILLIS);
+                cancellationSignal = deadlineSignal;
+            }
+        } else {
+            admission.enterInternal();
+        }
+        try {
+            Cursor cursor = queryPets(uri, projection, selection, selectionArgs, sortOrder, limit,
+                    cancellationSignal);
+            // SQLite only runs the query when the cursor is first accessed, so do that while the
+            // call is admitted. A CursorLoader reads the count right away anyway.
+            try {
+                cursor.getCount();
+            } catch (RuntimeException e) {
+                cursor.close();
+                throw e;
+            }
+            return trackCursor(cursor, uri);
+        } finally {
+            if (external) {
+                // the rows are all read by now, the cursor must not be cancelled later on
+                if (deadline != null) {
+                    deadlineHandler.removeCallbacks(deadline);
+                }
+                if (callerSignal != null) {
+                    callerSignal.setOnCancelListener(null);
+                }
+                admission.exitExternal();
+            } else {
+                admission.exitInternal();
+            }
+        }
+    }
+
+    /**
+     * Other apps can't pass a selection or a sort order, which could make SQLite scan or sort
+     * every pet, nor SQL expressions as columns. The filter and sort parameters cover what
+     * they need, with SQL that is backed by the pet indices, see {@link #queryFiltered}.
+     */
+    private static void checkExternalQuery(Uri uri, int match, String[] projection,
+                                           String selection, String sortOrder) {
+        if (match == DRAFTS || match == DRAFT_ID) {
+            throw new SecurityException("Drafts can't be read by other apps");
+        }
+        if (selection != null || sortOrder != null) {
+            throw new SecurityException("Other apps can't pass a selection or sort order for "
+                    + uri + ", use the filter and sort parameters instead");
+        }
+        checkProjection(uri, projection);
+    }
+
+    /**
+     * Writes are only accepted from this app, whatever permissions the caller holds.
+     */
+    private void enforceInternalCaller(Uri uri) {
+        if (admission.isExternal(Binder.getCallingUid())) {
+            throw new SecurityException("Other apps can't write to " + uri);
+        }
+    }
+
+    /**
+     * Records a call that started at the given {@link System#nanoTime()}, if recording is
+     * enabled. The calls of a replay are not recorded.
+     */
+    private void trace(int operation, Uri uri, String[] projection, String selection,
+                       String[] selectionArgs, String sortOrder, ContentValues values, int rows,
+                       long startNanos) {
+        if (trace == null || TraceReplayer.isReplayUri(uri)) {
+            return;
+        }
+        trace.record(operation,
+                batchChanges.get() != null ? ProviderTrace.FLAG_IN_BATCH : 0,
+                ProviderTrace.toPattern(uri),
+                projection,
+                selection,
+                selectionArgs != null ? selectionArgs.length : 0,
+                sortOrder,
+                values != null ? values.keySet() : null,
+                rows,
+                startNanos);
+    }
+
+    /**
+     * Wraps the cursor for leak detection if cursor tracking is enabled, see {@link CursorTracker}.
+     */
+    private Cursor trackCursor(Cursor cursor, Uri uri) {
+        return trackCursors ? CursorTracker.track(cursor, uri.toString()) : cursor;
+    }
+
+    private Cursor queryPets(Uri uri, String[] projection, String selection,
+                             String[] selectionArgs, String sortOrder, String limit,
+                             CancellationSignal cancellationSignal) {
 
         Cursor cursor = null;
 
         int match = uriMatcher.match(uri);
         switch (match) {
             case PETS:
-                cursor = db.query(
-                        PetEntry.TABLE_NAME,
+            case SHELTER_PETS:
+                SQLiteDatabase db = getDbHelper(uri, match).getReadableDatabase();
+                if (hasFilterParameters(uri)) {
+                    cursor = queryFiltered(db, uri, match, projection, selection, sortOrder,
+                            limit, cancellationSignal);
+                    break;
+                }
+                // Only the active pets are queried, unless the archived ones are asked for
+                boolean includeArchived = uri.getBooleanQueryParameter(
+                        PetEntry.PARAM_INCLUDE_ARCHIVED, false);
+                cursor = queryDatabase(
+                        db,
+                        includeArchived ? allPetsTable(db) : PetEntry.TABLE_NAME,
                         projection,
                         selection,
                         selectionArgs,
-                        null,
-                        null,
-                        sortOrder);
+                        sortOrder,
+                        limit,
+                        cancellationSignal);
                 break;
             case PET_ID:
+            case SHELTER_PET_ID:
+                db = getDbHelper(uri, match).getReadableDatabase();
                 selection = PetEntry._ID + " = ?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                cursor = db.query(
+                cursor = queryDatabase(
+                        db,
                         PetEntry.TABLE_NAME,
                         projection,
                         selection,
                         selectionArgs,
+                        sortOrder,
+                        limit,
+                        cancellationSignal);
+                if (cursor.getCount() == 0) {
+                    // The pet is not active, look for it in the archive
+                    cursor.close();
+                    cursor = queryDatabase(
+                            db,
+                            PetsDbHelper.ARCHIVE_PETS_TABLE,
+                            projection,
+                            selection,
+                            selectionArgs,
+                            sortOrder,
+                            limit,
+                            cancellationSignal);
+                }
+                break;
+            case PET_WEIGHTS:
+            case SHELTER_PET_WEIGHTS:
+                cursor = queryWeights(uri, getDbHelper(uri, match).getReadableDatabase(), limit,
+                        cancellationSignal);
+                break;
+            case PETS_BY_GENDER:
+            case PETS_BY_BREED:
+                cursor = queryFiltered(getDbHelper(uri, match).getReadableDatabase(), uri, match,
+                        projection, selection, sortOrder, limit, cancellationSignal);
+                // the pets of a gender or breed change whenever any pet changes
+                cursor.setNotificationUri(getContext().getContentResolver(), PetEntry.CONTENT_URI);
+                return cursor;
+            case PET_SECTIONS:
+                // The sections are kept up to date by triggers, reading them never scans the pets
+                cursor = queryDatabase(
+                        getDbHelper(uri, match).getReadableDatabase(),
+                        PetEntry.SECTIONS_TABLE_NAME,
+                        new String[]{PetEntry.COLUMN_SECTION, PetEntry.COLUMN_SECTION_COUNT},
                         null,
                         null,
-                        sortOrder);
-                break;
+                        PetEntry.COLUMN_SECTION,
+                        limit,
+                        cancellationSignal);
+                // the sections change whenever the pets change
+                cursor.setNotificationUri(getContext().getContentResolver(), PetEntry.CONTENT_URI);
+                return cursor;
+            case DRAFTS:
+            case DRAFT_ID:
+                if (match == DRAFT_ID) {
+                    selection = DraftEntry.COLUMN_PET_ID + " = ?";
+                    selectionArgs = new String[]{String.valueOf(parseId(uri.getLastPathSegment()))};
+                }
+                // drafts are not observed, see DraftEntry
+                return queryDatabase(
+                        getDbHelper(uri, match).getReadableDatabase(),
+                        DraftEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        sortOrder,
+                        null,
+                        cancellationSignal);
+            case BREEDS:
+                // grouped the same way as the breed index is sorted, so SQLite walks the index
+                // instead of the pets
+                cursor = queryDatabase(
+                        getDbHelper(uri, match).getReadableDatabase(),
+                        PetEntry.TABLE_NAME,
+                        new String[]{PetEntry.COLUMN_PET_BREED,
+                                "COUNT(*) AS " + PetEntry.COLUMN_BREED_COUNT},
+                        PetEntry.COLUMN_PET_BREED + " IS NOT NULL AND " + PetEntry.COLUMN_PET_BREED + " != ''",
+                        null,
+                        PetEntry.COLUMN_PET_BREED + " COLLATE NOCASE",
+                        PetEntry.COLUMN_PET_BREED + " COLLATE NOCASE",
+                        limit,
+                        cancellationSignal);
+                // the breeds change whenever the pets change
+                cursor.setNotificationUri(getContext().getContentResolver(), PetEntry.CONTENT_URI);
+                return cursor;
+            case ALL_SHELTERS_PETS:
+                cursor = queryAllShelters(projection, selection, selectionArgs, sortOrder,
+                        limit, cancellationSignal);
+                // a change in any shelter changes the merged result
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        PetContract.BASE_CONTENT_URI);
+                return cursor;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
@@ -89,6 +483,395 @@ public class PetProvider extends ContentProvider {
         return cursor;
     }
 
+    private static boolean hasFilterParameters(Uri uri) {
+        return uri.getQueryParameter(PetEntry.PARAM_MIN_WEIGHT) != null
+                || uri.getQueryParameter(PetEntry.PARAM_MAX_WEIGHT) != null
+                || uri.getQueryParameter(PetEntry.PARAM_SORT) != null;
+    }
+
+    /**
+     * Queries the active pets with the filters and the sort order given by the URI.
+     * <p>
+     * The SQL only depends on which filters are present, never on their values, which are
+     * bound as arguments. So there are only a few distinct statements, which stay prepared in
+     * SQLite's statement cache, and each of them is backed by one of the pet indices.
+     */
+    private static Cursor queryFiltered(SQLiteDatabase db, Uri uri, int match, String[] projection,
+                                        String selection, String sortOrder, String limit,
+                                        CancellationSignal cancellationSignal) {
+        if (selection != null || sortOrder != null) {
+            throw new IllegalArgumentException("Selection and sort order are not supported for " + uri);
+        }
+        checkProjection(uri, projection);
+
+        List<String> conditions = new ArrayList<>();
+        List<String> args = new ArrayList<>();
+        switch (match) {
+            case PETS_BY_GENDER:
+                int gender = (int) ContentUris.parseId(uri);
+                if (!PetEntry.isValidGender(gender)) {
+                    throw new IllegalArgumentException("Unknown gender " + gender + " in " + uri);
+                }
+                conditions.add(PetEntry.COLUMN_PET_GENDER + " = ?");
+                args.add(String.valueOf(gender));
+                break;
+            case PETS_BY_BREED:
+                conditions.add(PetEntry.COLUMN_PET_BREED + " = ? COLLATE NOCASE");
+                args.add(uri.getLastPathSegment());
+                break;
+        }
+        if (uri.getQueryParameter(PetEntry.PARAM_MIN_WEIGHT) != null) {
+            conditions.add(PetEntry.COLUMN_PET_WEIGHT + " >= ?");
+            args.add(String.valueOf(parseLongParameter(uri, PetEntry.PARAM_MIN_WEIGHT, 0)));
+        }
+        if (uri.getQueryParameter(PetEntry.PARAM_MAX_WEIGHT) != null) {
+            conditions.add(PetEntry.COLUMN_PET_WEIGHT + " <= ?");
+            args.add(String.valueOf(parseLongParameter(uri, PetEntry.PARAM_MAX_WEIGHT, 0)));
+        }
+
+        return queryDatabase(
+                db,
+                PetEntry.TABLE_NAME,
+                projection,
+                conditions.isEmpty() ? null : TextUtils.join(" AND ", conditions),
+                args.toArray(new String[args.size()]),
+                getFilterSortOrder(uri),
+                limit,
+                cancellationSignal);
+    }
+
+    /**
+     * Checks that the projection only holds plain pet columns, and no SQL expressions.
+     */
+    private static void checkProjection(Uri uri, String[] projection) {
+        if (projection != null) {
+            for (String column : projection) {
+                if (!VALUE_COLUMNS.contains(column)) {
+                    throw new IllegalArgumentException("Unknown column " + column + " for " + uri);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the ORDER BY clause for the sort parameter of the URI. Ties are broken by the
+     * id, which every index holds as well.
+     */
+    private static String getFilterSortOrder(Uri uri) {
+        String sort = uri.getQueryParameter(PetEntry.PARAM_SORT);
+        if (sort == null || sort.equals(PetEntry.SORT_ID)) {
+            return PetEntry._ID;
+        } else if (sort.equals(PetEntry.SORT_NAME)) {
+            return PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE, " + PetEntry._ID;
+        } else if (sort.equals(PetEntry.SORT_WEIGHT)) {
+            return PetEntry.COLUMN_PET_WEIGHT + ", " + PetEntry._ID;
+        }
+        throw new IllegalArgumentException("Unknown sort order " + sort + " in " + uri);
+    }
+
+    /**
+     * Returns a table expression for the active and the archived pets together.
+     */
+    private static String allPetsTable(SQLiteDatabase db) {
+        String columns = PetsDbHelper.getPetColumnList(db);
+        return "(SELECT " + columns + " FROM main." + PetEntry.TABLE_NAME
+                + " UNION ALL SELECT " + columns + " FROM " + PetsDbHelper.ARCHIVE_PETS_TABLE + ")";
+    }
+
+    /**
+     * Queries the weight history of the pet in the URI, see {@link WeightEntry}.
+     * The projection, selection and sort order are fixed.
+     */
+    private Cursor queryWeights(Uri uri, SQLiteDatabase db, String limit,
+                                CancellationSignal cancellationSignal) {
+        List<String> segments = uri.getPathSegments();
+        long petId = Long.parseLong(segments.get(segments.size() - 2));
+        long from = parseLongParameter(uri, WeightEntry.PARAM_FROM, Long.MIN_VALUE);
+        long to = parseLongParameter(uri, WeightEntry.PARAM_TO, Long.MAX_VALUE);
+        String resolution = uri.getQueryParameter(WeightEntry.PARAM_RESOLUTION);
+        if (resolution != null && !resolution.equals(WeightEntry.RESOLUTION_RAW)
+                && !resolution.equals(WeightEntry.RESOLUTION_DAY)
+                && !resolution.equals(WeightEntry.RESOLUTION_WEEK)
+                && !resolution.equals(WeightEntry.RESOLUTION_MONTH)) {
+            throw new IllegalArgumentException("Unknown resolution " + resolution + " in " + uri);
+        }
+        return WeightHistory.query(db, petId, resolution, from, to, limit, cancellationSignal);
+    }
+
+    private static long parseLongParameter(Uri uri, String name, long defaultValue) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " in " + uri);
+        }
+    }
+
+    /**
+     * Runs a query on the given database and passes the cancellation signal on to SQLite.
+     * A signal is only ever handed to the provider on API 16 and above, so the signal
+     * aware query is only used there.
+     */
+    private static Cursor queryDatabase(SQLiteDatabase db, String table, String[] projection,
+                                        String selection, String[] selectionArgs,
+                                        String sortOrder, String limit,
+                                        CancellationSignal cancellationSignal) {
+        return queryDatabase(db, table, projection, selection, selectionArgs, null, sortOrder,
+                limit, cancellationSignal);
+    }
+
+    @SuppressLint("NewApi")
+    private static Cursor queryDatabase(SQLiteDatabase db, String table, String[] projection,
+                                        String selection, String[] selectionArgs,
+                                        String groupBy, String sortOrder, String limit,
+                                        CancellationSignal cancellationSignal) {
+        if (cancellationSignal == null) {
+            return db.query(false, table, projection, selection, selectionArgs, groupBy, null,
+                    sortOrder, limit);
+        }
+        return db.query(false, table, projection, selection, selectionArgs, groupBy, null,
+                sortOrder, limit, cancellationSignal);
+    }
+
+    /**
+     * Runs the query against every shelter database in parallel and merges the results
+     * according to the sort order. Every row gets the id of its shelter in
+     * {@link PetEntry#COLUMN_SHELTER} and its id within the shelter in
+     * {@link PetEntry#COLUMN_SHELTER_PET_ID}, the _id of the merged rows is only unique within
+     * the result, see {@link SortedMergeCursor}.
+     * <p>
+     * A cancellation signal can only serve one query at a time, so every shelter query gets a
+     * signal of its own, which is cancelled together with the given one.
+     */
+    @SuppressLint("NewApi")
+    private Cursor queryAllShelters(final String[] projection, final String selection,
+                                    final String[] selectionArgs, final String sortOrder,
+                                    String limit, CancellationSignal cancellationSignal) {
+        // fail before querying every shelter if the merge can't follow the sort order
+        SortedMergeCursor.checkSortOrder(sortOrder);
+        List<String> shelterIds = shelterDatabases.getShelterIds();
+        final List<CancellationSignal> shelterSignals = new ArrayList<>();
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+            for (int i = 0; i < shelterIds.size(); i++) {
+                shelterSignals.add(new CancellationSignal());
+            }
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    for (CancellationSignal shelterSignal : shelterSignals) {
+                        shelterSignal.cancel();
+                    }
+                }
+            });
+        }
+
+        try {
+            return queryShelters(shelterIds, shelterSignals, projection, selection,
+                    selectionArgs, sortOrder, limit);
+        } finally {
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(null);
+            }
+        }
+    }
+
+    private Cursor queryShelters(List<String> shelterIds, List<CancellationSignal> shelterSignals,
+                                 final String[] projection, final String selection,
+                                 final String[] selectionArgs, final String sortOrder,
+                                 final String limit) {
+        List<Future<Cursor>> futures = new ArrayList<>();
+        for (int i = 0; i < shelterIds.size(); i++) {
+            final String shelterId = shelterIds.get(i);
+            final PetsDbHelper helper = shelterDatabases.getHelper(shelterId);
+            final CancellationSignal shelterSignal = shelterSignals.isEmpty() ? null : shelterSignals.get(i);
+            futures.add(fanOutExecutor.submit(new Callable<Cursor>() {
+                @Override
+                public Cursor call() {
+                    Cursor cursor = queryDatabase(
+                            helper.getReadableDatabase(),
+                            PetEntry.TABLE_NAME,
+                            withShelterColumn(projection, shelterId),
+                            selection,
+                            selectionArgs,
+                            sortOrder,
+                            limit,
+                            shelterSignal);
+                    // SQLiteCursor only runs the query when it is first accessed,
+                    // so do that here on the worker thread
+                    cursor.getCount();
+                    return cursor;
+                }
+            }));
+        }
+
+        Cursor[] cursors = new Cursor[futures.size()];
+        try {
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = futures.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            closeShelterCursors(futures, cursors);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while querying shelters", e);
+        } catch (ExecutionException e) {
+            closeShelterCursors(futures, cursors);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Failed to query shelters", e.getCause());
+        }
+
+        try {
+            return new SortedMergeCursor(cursors, sortOrder);
+        } catch (RuntimeException e) {
+            // the merge can be cancelled while it walks the shelter cursors
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a constant column with the shelter id and a column with the id of the pet within the
+     * shelter to the projection.
+     * The shelter id was validated by {@link ShelterDatabases}, so it is safe to inline.
+     */
+    private static String[] withShelterColumn(String[] projection, String shelterId) {
+        String shelterColumn = "'" + shelterId + "' AS " + PetEntry.COLUMN_SHELTER;
+        String petIdColumn = PetEntry._ID + " AS " + PetEntry.COLUMN_SHELTER_PET_ID;
+        if (projection == null) {
+            return new String[]{"*", shelterColumn, petIdColumn};
+        }
+        String[] result = new String[projection.length + 2];
+        System.arraycopy(projection, 0, result, 0, projection.length);
+        result[projection.length] = shelterColumn;
+        result[projection.length + 1] = petIdColumn;
+        return result;
+    }
+
+    /**
+     * Cancels the shelter queries that are still running and closes the cursors of the ones
+     * that already finished.
+     */
+    private static void closeShelterCursors(List<Future<Cursor>> futures, Cursor[] cursors) {
+        for (int i = 0; i < cursors.length; i++) {
+            Future<Cursor> future = futures.get(i);
+            if (cursors[i] == null && !future.cancel(true)) {
+                try {
+                    cursors[i] = future.get();
+                } catch (Exception ignored) {
+                    // the query failed, there is no cursor to close
+                }
+            }
+            if (cursors[i] != null) {
+                cursors[i].close();
+            }
+        }
+    }
+
+    /**
+     * Answers simple questions about the pets without building a Cursor,
+     * see {@link PetContract#METHOD_COUNT} for the supported methods.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (method == null) {
+            throw new IllegalArgumentException("No method given");
+        }
+        String shelterId = extras != null
+                ? extras.getString(PetContract.EXTRA_SHELTER, PetContract.DEFAULT_SHELTER)
+                : PetContract.DEFAULT_SHELTER;
+        // the platform only checks the permissions of query() and the writes
+        int uid = Binder.getCallingUid();
+        boolean external = admission.isExternal(uid);
+        if (external) {
+            if (PetContract.METHOD_DIAGNOSTICS.equals(method)) {
+                throw new SecurityException("Diagnostics are only available to this app");
+            }
+            getContext().enforceCallingPermission(PetContract.PERMISSION_READ_PETS,
+                    "Calling " + method + " requires " + PetContract.PERMISSION_READ_PETS);
+            admission.enterExternal(uid);
+        } else {
+            admission.enterInternal();
+        }
+        long start = System.nanoTime();
+        try {
+            return callMethod(method, arg, extras, shelterId);
+        } finally {
+            if (external) {
+                admission.exitExternal();
+            } else {
+                admission.exitInternal();
+            }
+            if (trace != null && !TraceReplayer.REPLAY_SHELTER.equals(shelterId)) {
+                String column = extras != null ? extras.getString(PetContract.EXTRA_COLUMN) : null;
+                trace.record(ProviderTrace.OP_CALL, 0, method,
+                        column != null ? new String[]{column} : null,
+                        null, arg != null ? 1 : 0, null, null, 0, start);
+            }
+        }
+    }
+
+    private Bundle callMethod(String method, String arg, Bundle extras, String shelterId) {
+        PetsDbHelper helper = shelterDatabases.getHelper(shelterId);
+        SQLiteDatabase db = helper.getReadableDatabase();
+        CompiledStatements compiledStatements = helper.getCompiledStatements();
+
+        Bundle result = new Bundle();
+        switch (method) {
+            case PetContract.METHOD_COUNT:
+                SQLiteStatement statement = compiledStatements.get(db, SQL_COUNT);
+                synchronized (statement) {
+                    result.putLong(PetContract.EXTRA_RESULT, statement.simpleQueryForLong());
+                }
+                return result;
+            case PetContract.METHOD_EXISTS:
+                statement = compiledStatements.get(db, SQL_EXISTS);
+                synchronized (statement) {
+                    statement.bindLong(1, parseId(arg));
+                    result.putBoolean(PetContract.EXTRA_RESULT, statement.simpleQueryForLong() != 0);
+                }
+                return result;
+            case PetContract.METHOD_GET_VALUE:
+                String column = extras != null ? extras.getString(PetContract.EXTRA_COLUMN) : null;
+                if (!VALUE_COLUMNS.contains(column)) {
+                    throw new IllegalArgumentException("Unknown column " + column);
+                }
+                statement = compiledStatements.get(db, "SELECT " + column
+                        + " FROM main." + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " = ?1"
+                        + " UNION ALL SELECT " + column
+                        + " FROM " + PetsDbHelper.ARCHIVE_PETS_TABLE + " WHERE " + PetEntry._ID + " = ?1"
+                        + " LIMIT 1");
+                synchronized (statement) {
+                    statement.bindLong(1, parseId(arg));
+                    try {
+                        result.putString(PetContract.EXTRA_RESULT, statement.simpleQueryForString());
+                    } catch (SQLiteDoneException e) {
+                        // there is no pet with this id
+                        result.putString(PetContract.EXTRA_RESULT, null);
+                    }
+                }
+                return result;
+            case PetContract.METHOD_DIAGNOSTICS:
+                return helper.getStorageProfile().getDiagnostics(db);
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+    }
+
+    private static long parseId(String arg) {
+        try {
+            return Long.parseLong(arg);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid pet id " + arg);
+        }
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
@@ -97,9 +880,25 @@ public class PetProvider extends ContentProvider {
         final int match = uriMatcher.match(uri);
         switch (match) {
             case PETS:
+            case SHELTER_PETS:
+            case ALL_SHELTERS_PETS:
+            case PETS_BY_GENDER:
+            case PETS_BY_BREED:
                 return PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
+            case SHELTER_PET_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case BREEDS:
+                return PetEntry.CONTENT_BREEDS_TYPE;
+            case PET_SECTIONS:
+                return PetEntry.CONTENT_SECTIONS_TYPE;
+            case PET_WEIGHTS:
+            case SHELTER_PET_WEIGHTS:
+                return WeightEntry.CONTENT_LIST_TYPE;
+            case DRAFTS:
+                return DraftEntry.CONTENT_LIST_TYPE;
+            case DRAFT_ID:
+                return DraftEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -110,24 +909,145 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        enforceInternalCaller(uri);
+        admission.enterInternal();
+        long start = System.nanoTime();
+        try {
+            return insertUri(uri, contentValues);
+        } finally {
+            admission.exitInternal();
+            trace(ProviderTrace.OP_INSERT, uri, null, null, null, null, contentValues, 1, start);
+        }
+    }
+
+    private Uri insertUri(Uri uri, ContentValues contentValues) {
         final int match = uriMatcher.match(uri);
         switch (match) {
             case PETS:
-                return insertPet(uri, contentValues);
+            case SHELTER_PETS:
+                return insertPet(uri, getOrCreateDbHelper(uri, match), contentValues);
+            case DRAFTS:
+                return insertDraft(getOrCreateDbHelper(uri, match), contentValues);
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
     }
 
-    private Uri insertPet(Uri uri, ContentValues values) {
+    /**
+     * Inserts many pets at once, in a single transaction and with a single change notification.
+     * All rows are validated up front; invalid rows are skipped and logged instead of failing
+     * the whole batch.
+     *
+     * @return the number of pets inserted.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        enforceInternalCaller(uri);
+        admission.enterInternal();
+        long start = System.nanoTime();
+        try {
+            return bulkInsertPets(uri, values);
+        } finally {
+            admission.exitInternal();
+            trace(ProviderTrace.OP_BULK_INSERT, uri, null, null, null, null,
+                    values.length > 0 ? values[0] : null, values.length, start);
+        }
+    }
+
+    private int bulkInsertPets(Uri uri, ContentValues[] values) {
+        final int match = uriMatcher.match(uri);
+        if (match != PETS && match != SHELTER_PETS) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+
+        PetValidator validator = PetValidator.getInstance();
+        int[] errors = new int[values.length];
+        int invalid = validator.validateBatch(values, true, errors);
+        if (invalid > 0) {
+            int firstError = 0;
+            while (errors[firstError] == PetValidator.VALID) {
+                firstError++;
+            }
+            Log.w(LOG_TAG, "Skipping " + invalid + " invalid pets for " + uri
+                    + ", the first one at " + firstError + ": " + validator.getMessage(errors[firstError]));
+        }
+
+        PetsDbHelper dbHelper = getOrCreateDbHelper(uri, match);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        int inserted = 0;
+        batchChanges.set(new LinkedHashSet<Uri>());
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                if (errors[i] == PetValidator.VALID && insertValidPet(uri, dbHelper, values[i]) != null) {
+                    inserted++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            batchChanges.remove();
+        }
+
+        if (inserted > 0) {
+            notifyChange(uri);
+        }
+        return inserted;
+    }
+
+    /**
+     * Writes the draft of a pet, replacing its previous draft. The change is not notified,
+     * see {@link DraftEntry}.
+     */
+    private Uri insertDraft(PetsDbHelper dbHelper, ContentValues values) {
+        Long petId = values.getAsLong(DraftEntry.COLUMN_PET_ID);
+        if (petId == null) {
+            throw new IllegalArgumentException("Draft requires a pet id");
+        }
+        values = new ContentValues(values);
+        values.put(DraftEntry.COLUMN_LAST_MODIFIED, System.currentTimeMillis());
+
+        long rowId = dbHelper.getWritableDatabase().insertWithOnConflict(DraftEntry.TABLE_NAME,
+                null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        if (rowId == -1) {
+            Log.e(LOG_TAG, "Failed to write draft of pet " + petId);
+            return null;
+        }
+        return DraftEntry.buildDraftUri(petId);
+    }
+
+    private Uri insertPet(Uri uri, PetsDbHelper dbHelper, ContentValues values) {
 
         sanityCheckBeforeInsert(values);
 
+        return insertValidPet(uri, dbHelper, values);
+    }
+
+    /**
+     * Inserts a pet whose values were already validated.
+     */
+    private Uri insertValidPet(Uri uri, PetsDbHelper dbHelper, ContentValues values) {
+        values = new ContentValues(values);
+        values.put(PetEntry.COLUMN_PET_LAST_MODIFIED, System.currentTimeMillis());
+        // every pet starts at the column's default version
+        values.remove(PetEntry.COLUMN_PET_VERSION);
+
         // Get writeable database
-        SQLiteDatabase db = petsDbHelper.getWritableDatabase();
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
 
-        // Insert the new pet with the given values
-        long newId = db.insert(PetEntry.TABLE_NAME, null, values);
+        // Insert the new pet with the given values, and its first weight measurement
+        long newId;
+        db.beginTransaction();
+        try {
+            newId = db.insert(PetEntry.TABLE_NAME, null, values);
+            Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+            if (newId != -1 && weight != null) {
+                WeightHistory.record(db, newId, weight, System.currentTimeMillis());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
         // If the ID is -1, then the insertion failed. Log an error and return null.
         if (newId == -1) {
@@ -135,11 +1055,14 @@ public class PetProvider extends ContentProvider {
             return null;
         }
 
-        // Notify all listeners that the data has changed for the pet content uri
-        getContext().getContentResolver().notifyChange(uri, null);
+        // Notify all listeners that the data has changed for the pet content uri.
+        // Listeners of the pet list hear about the new pet as well, as they
+        // listen to all descendants of the list uri.
+        Uri newUri = ContentUris.withAppendedId(uri, newId);
+        notifyChange(newUri);
 
         // return the new URI with the ID appended to the end of it
-        return ContentUris.withAppendedId(uri, newId);
+        return newUri;
     }
 
 
@@ -148,24 +1071,66 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        // Get writeable database
-        SQLiteDatabase db = petsDbHelper.getWritableDatabase();
+        enforceInternalCaller(uri);
+        admission.enterInternal();
+        long start = System.nanoTime();
+        try {
+            return deleteUri(uri, selection, selectionArgs);
+        } finally {
+            admission.exitInternal();
+            trace(ProviderTrace.OP_DELETE, uri, null, selection, selectionArgs, null, null, 0, start);
+        }
+    }
 
+    private int deleteUri(Uri uri, String selection, String[] selectionArgs) {
         // Track the number of rows that were deleted
         int rowsDeleted;
 
         final int match = uriMatcher.match(uri);
         switch (match) {
             case PETS:
-                // Delete all rows that match the selection and selection args
-                rowsDeleted = db.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+            case SHELTER_PETS:
+                // Get writeable database
+                SQLiteDatabase db = getOrCreateDbHelper(uri, match).getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    // Delete all rows that match the selection and selection args, active
+                    // or archived, together with the weight history of the deleted pets
+                    rowsDeleted = db.delete(PetEntry.TABLE_NAME, selection, selectionArgs)
+                            + db.delete(PetsDbHelper.ARCHIVE_PETS_TABLE, selection, selectionArgs);
+                    if (rowsDeleted != 0) {
+                        WeightHistory.deleteOrphans(db,
+                                "SELECT " + PetEntry._ID + " FROM main." + PetEntry.TABLE_NAME
+                                        + " UNION ALL SELECT " + PetEntry._ID
+                                        + " FROM " + PetsDbHelper.ARCHIVE_PETS_TABLE);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             case PET_ID:
+            case SHELTER_PET_ID:
+                db = getOrCreateDbHelper(uri, match).getWritableDatabase();
                 // Delete a single row given by the ID in the URI
+                long id = ContentUris.parseId(uri);
                 selection = PetEntry._ID + "= ?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                rowsDeleted = db.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                selectionArgs = new String[]{String.valueOf(id)};
+                db.beginTransaction();
+                try {
+                    rowsDeleted = db.delete(PetEntry.TABLE_NAME, selection, selectionArgs)
+                            + db.delete(PetsDbHelper.ARCHIVE_PETS_TABLE, selection, selectionArgs);
+                    WeightHistory.delete(db, id);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
+            case DRAFT_ID:
+                // Drafts are not observed, so return without notifying
+                return getOrCreateDbHelper(uri, match).getWritableDatabase().delete(DraftEntry.TABLE_NAME,
+                        DraftEntry.COLUMN_PET_ID + " = ?",
+                        new String[]{String.valueOf(parseId(uri.getLastPathSegment()))});
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
@@ -173,7 +1138,7 @@ public class PetProvider extends ContentProvider {
         // If 1 or more rows were deleted, then notify all listeners that the data at the
         // given URI has changed
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         // Return the number of rows deleted
@@ -188,17 +1153,57 @@ public class PetProvider extends ContentProvider {
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection, String[]
             selectionArgs) {
+        enforceInternalCaller(uri);
+        admission.enterInternal();
+        long start = System.nanoTime();
+        try {
+            return updateUri(uri, contentValues, selection, selectionArgs);
+        } finally {
+            admission.exitInternal();
+            trace(ProviderTrace.OP_UPDATE, uri, null, selection, selectionArgs, null, contentValues, 0, start);
+        }
+    }
+
+    private int updateUri(Uri uri, ContentValues contentValues, String selection,
+                          String[] selectionArgs) {
         final int match = uriMatcher.match(uri);
         switch (match) {
             case PETS:
-                return updatePet(uri, contentValues, selection, selectionArgs);
+            case SHELTER_PETS:
+                return updatePet(uri, getOrCreateDbHelper(uri, match), contentValues, selection, selectionArgs);
             case PET_ID:
+            case SHELTER_PET_ID:
                 // For the PET_ID code, extract out the ID from the URI,
                 // so we know which row to update. Selection will be "_id=?" and selection
                 // arguments will be a String array containing the actual ID.
+                long id = ContentUris.parseId(uri);
                 selection = PetEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return updatePet(uri, contentValues, selection, selectionArgs);
+                selectionArgs = new String[]{String.valueOf(id)};
+                String expectedVersion = uri.getQueryParameter(PetEntry.PARAM_EXPECTED_VERSION);
+                PetsDbHelper dbHelper = getOrCreateDbHelper(uri, match);
+                SQLiteDatabase db = dbHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    // An archived pet becomes active again when it is modified
+                    boolean exists = DatabaseUtils.queryNumEntries(db, PetEntry.TABLE_NAME, selection, selectionArgs) > 0
+                            || ArchiveMover.restorePet(db, id);
+                    // The version check and the update run in the same transaction,
+                    // so nobody can change the pet in between
+                    if (exists && expectedVersion != null) {
+                        long version = parseLongParameter(uri, PetEntry.PARAM_EXPECTED_VERSION, 0);
+                        if (DatabaseUtils.queryNumEntries(db, PetEntry.TABLE_NAME,
+                                selection + " AND " + PetEntry.COLUMN_PET_VERSION + " = " + version,
+                                selectionArgs) == 0) {
+                            throw new PetVersionConflictException(uri, version);
+                        }
+                    }
+                    int rowsUpdated = updatePet(uri.buildUpon().clearQuery().build(), dbHelper,
+                            contentValues, selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                    return rowsUpdated;
+                } finally {
+                    db.endTransaction();
+                }
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
@@ -209,8 +1214,8 @@ public class PetProvider extends ContentProvider {
      * specified in the selection and selection arguments (which could be 0 or 1 or more pets).
      * Return the number of rows that were successfully updated.
      */
-    private int updatePet(Uri uri, ContentValues contentValues, String selection, String[]
-            selectionArgs) {
+    private int updatePet(Uri uri, PetsDbHelper dbHelper, ContentValues contentValues,
+                          String selection, String[] selectionArgs) {
 
         // If there are no values to update, then don't try to update the database
         if (contentValues.size() == 0) {
@@ -219,70 +1224,209 @@ public class PetProvider extends ContentProvider {
 
         sanityCheckBeforeUpdate(contentValues);
 
+        contentValues = new ContentValues(contentValues);
+        contentValues.put(PetEntry.COLUMN_PET_LAST_MODIFIED, System.currentTimeMillis());
+        // the version is maintained by the provider only
+        contentValues.remove(PetEntry.COLUMN_PET_VERSION);
+
         // Get writeable database
-        SQLiteDatabase db = petsDbHelper.getWritableDatabase();
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
 
-        int rowsUpdated = db.update(PetEntry.TABLE_NAME,
-                contentValues,
-                selection,
-                selectionArgs);
+        int rowsUpdated;
+        Integer weight = contentValues.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        if (weight == null) {
+            rowsUpdated = updateWithNewVersion(db, contentValues, selection, selectionArgs);
+        } else {
+            // Record a weight measurement for every pet whose weight changes
+            db.beginTransaction();
+            try {
+                List<Long> changedIds = queryIdsWithOtherWeight(db, weight, selection, selectionArgs);
+                rowsUpdated = updateWithNewVersion(db, contentValues, selection, selectionArgs);
+                long now = System.currentTimeMillis();
+                for (long id : changedIds) {
+                    WeightHistory.record(db, id, weight, now);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
 
         // If 1 or more rows were updated, then notify all listeners that the data at the
         // given URI has changed
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         return rowsUpdated;
     }
 
 
-    private void sanityCheckBeforeInsert(ContentValues values) {
-        // Check that the name is not null
-        String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
-        if (name == null) {
-            throw new IllegalArgumentException("Pet requires a name");
+    /**
+     * Updates the pets like {@link SQLiteDatabase#update}, and increments the version of every
+     * updated pet in the same statement.
+     */
+    private static int updateWithNewVersion(SQLiteDatabase db, ContentValues values,
+                                            String selection, String[] selectionArgs) {
+        StringBuilder sql = new StringBuilder("UPDATE " + PetEntry.TABLE_NAME + " SET ");
+        List<Object> bindArgs = new ArrayList<>();
+        for (Map.Entry<String, Object> value : values.valueSet()) {
+            sql.append(value.getKey()).append(" = ?, ");
+            bindArgs.add(value.getValue());
         }
-
-        // Check that the gender is not null
-        Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
-        if (gender == null || !PetEntry.isValidGender(gender)) {
-            throw new IllegalArgumentException("Pet requires a valid gender");
+        sql.append(PetEntry.COLUMN_PET_VERSION).append(" = ").append(PetEntry.COLUMN_PET_VERSION).append(" + 1");
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" WHERE ").append(selection);
+        }
+        if (selectionArgs != null) {
+            bindArgs.addAll(Arrays.asList(selectionArgs));
         }
 
-        // If the weight is provided, check that it's greater than or equal to 0 kg
-        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
-        if (weight != null && weight < 0) {
-            throw new IllegalArgumentException("Pet requires valid weight");
+        SQLiteStatement statement = db.compileStatement(sql.toString());
+        try {
+            for (int i = 0; i < bindArgs.size(); i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, bindArgs.get(i));
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
         }
+    }
 
-        // No need to check the breed, any value is valid (including null).
+    /**
+     * Returns the ids of the pets that match the selection and don't have the given weight.
+     */
+    private static List<Long> queryIdsWithOtherWeight(SQLiteDatabase db, int weight,
+                                                      String selection, String[] selectionArgs) {
+        String weightSelection = PetEntry.COLUMN_PET_WEIGHT + " != " + weight;
+        if (selection != null && !selection.isEmpty()) {
+            weightSelection = "(" + selection + ") AND " + weightSelection;
+        }
+        List<Long> ids = new ArrayList<>();
+        Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID},
+                weightSelection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
 
+    /**
+     * Applies all operations in a single transaction per shelter database. Listeners get one
+     * change notification for the whole batch instead of one per operation.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        enforceInternalCaller(PetContract.BASE_CONTENT_URI);
+        admission.enterInternal();
+        long start = System.nanoTime();
+        try {
+            return applyBatchTransaction(operations);
+        } finally {
+            admission.exitInternal();
+            // the operations of the batch are recorded one by one, marked as part of a batch,
+            // and the batch is recorded with the URI of its first operation
+            if (!operations.isEmpty()) {
+                trace(ProviderTrace.OP_APPLY_BATCH, operations.get(0).getUri(), null, null, null, null,
+                        null, operations.size(), start);
+            }
+        }
     }
 
-    private void sanityCheckBeforeUpdate(ContentValues values) {
-        if (values.containsKey(PetEntry.COLUMN_PET_NAME)) {
-            // Check that the name is not null
-            String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
-            if (name == null) {
-                throw new IllegalArgumentException("Pet requires a name");
+    private ContentProviderResult[] applyBatchTransaction(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Open a transaction on every database the batch writes to
+        Set<SQLiteDatabase> databases = new LinkedHashSet<>();
+        for (ContentProviderOperation operation : operations) {
+            Uri uri = operation.getUri();
+            int match = uriMatcher.match(uri);
+            if (match == UriMatcher.NO_MATCH || match == ALL_SHELTERS_PETS) {
+                throw new IllegalArgumentException("Batch operation is not supported for " + uri);
             }
+            databases.add(getOrCreateDbHelper(uri, match).getWritableDatabase());
         }
 
-        if (values.containsKey(PetEntry.COLUMN_PET_GENDER)) {
-            // Check that the gender is not null
-            Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
-            if (gender == null || !PetEntry.isValidGender(gender)) {
-                throw new IllegalArgumentException("Pet requires a valid gender");
+        Set<Uri> changes = new LinkedHashSet<>();
+        batchChanges.set(changes);
+        List<SQLiteDatabase> started = new ArrayList<>();
+        boolean successful = false;
+        try {
+            for (SQLiteDatabase db : databases) {
+                db.beginTransaction();
+                started.add(db);
+            }
+            ContentProviderResult[] results = super.applyBatch(operations);
+            for (SQLiteDatabase db : started) {
+                db.setTransactionSuccessful();
+            }
+            successful = true;
+            return results;
+        } finally {
+            for (SQLiteDatabase db : started) {
+                db.endTransaction();
+            }
+            batchChanges.remove();
+            if (successful && !changes.isEmpty()) {
+                getContext().getContentResolver().notifyChange(commonAncestor(changes), null);
             }
         }
+    }
 
-        if (values.containsKey(PetEntry.COLUMN_PET_WEIGHT)) {
-            // If the weight is provided, check that it's greater than or equal to 0 kg
-            Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
-            if (weight != null && weight < 0) {
-                throw new IllegalArgumentException("Pet requires valid weight");
+    /**
+     * Notifies all listeners that the data at the given URI has changed. Within a batch the
+     * notification is held back until the batch is done.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> changes = batchChanges.get();
+        if (changes != null) {
+            changes.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Returns the deepest URI that all given URIs are descendants of, notifying it reaches the
+     * listeners of each of them.
+     */
+    private static Uri commonAncestor(Set<Uri> uris) {
+        List<String> common = null;
+        for (Uri uri : uris) {
+            List<String> segments = uri.getPathSegments();
+            if (common == null) {
+                common = new ArrayList<>(segments);
+                continue;
             }
+            int length = 0;
+            while (length < common.size() && length < segments.size()
+                    && common.get(length).equals(segments.get(length))) {
+                length++;
+            }
+            common = common.subList(0, length);
+        }
+        Uri.Builder builder = PetContract.BASE_CONTENT_URI.buildUpon();
+        for (String segment : common) {
+            builder.appendPath(segment);
+        }
+        return builder.build();
+    }
+
+    private void sanityCheckBeforeInsert(ContentValues values) {
+        int error = PetValidator.getInstance().validate(values, true);
+        if (error != PetValidator.VALID) {
+            throw new IllegalArgumentException(PetValidator.getInstance().getMessage(error));
+        }
+    }
+
+    private void sanityCheckBeforeUpdate(ContentValues values) {
+        int error = PetValidator.getInstance().validate(values, false);
+        if (error != PetValidator.VALID) {
+            throw new IllegalArgumentException(PetValidator.getInstance().getMessage(error));
         }
     }
 }
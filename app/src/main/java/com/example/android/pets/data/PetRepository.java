@@ -0,0 +1,291 @@
+package com.example.android.pets.data;
+
+import android.annotation.SuppressLint;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link PetRepository} gives observable query results for the pet data.
+ * <p>
+ * Concurrent subscriptions to the same query (same URI, projection, selection, selection
+ * arguments and sort order) share a single query: while it is running, new subscribers simply
+ * wait for its result, and all of them get the same {@link Cursor}. The repository owns these
+ * cursors, so subscribers must not close them; a cursor is closed once it was replaced by a
+ * newer result or once its last subscriber is gone.
+ * <p>
+ * All subscriptions are refreshed through one {@link ContentObserver} on the provider's
+ * authority, which only refreshes the queries a change can affect, see
+ * {@link SharedQuery#isAffectedBy(Uri)}. The repository must only be used from the main
+ * thread, callbacks are delivered on the main thread as well.
+ */
+public class PetRepository {
+
+    public static final String LOG_TAG = PetRepository.class.getSimpleName();
+
+    private static PetRepository instance;
+
+    private final ContentResolver contentResolver;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, SharedQuery> queries = new HashMap<>();
+
+    private final ContentObserver observer = new ContentObserver(mainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // below API 16 the changed URI is not known, so every query is refreshed
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            for (SharedQuery query : queries.values()) {
+                if (uri == null || query.isAffectedBy(uri)) {
+                    query.refresh();
+                }
+            }
+        }
+    };
+
+    /**
+     * Receives the results of a subscribed query.
+     */
+    public interface Callback {
+
+        /**
+         * Called on the main thread with the first result and again after every change of the
+         * underlying data. The cursor is owned by the repository and must not be closed.
+         */
+        void onResult(Cursor cursor);
+    }
+
+    private PetRepository(Context context) {
+        contentResolver = context.getApplicationContext().getContentResolver();
+    }
+
+    public static synchronized PetRepository getInstance(Context context) {
+        if (instance == null) {
+            instance = new PetRepository(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Subscribes to the result of the given query. If the same query is already running or
+     * has a result, that one is shared instead of running the query again.
+     */
+    public Subscription subscribe(Uri uri, String[] projection, String selection,
+                                  String[] selectionArgs, String sortOrder, Callback callback) {
+        String key = buildKey(uri, projection, selection, selectionArgs, sortOrder);
+        SharedQuery query = queries.get(key);
+        if (query == null) {
+            if (queries.isEmpty()) {
+                contentResolver.registerContentObserver(PetContract.BASE_CONTENT_URI, true, observer);
+            }
+            query = new SharedQuery(key, uri, projection, selection, selectionArgs, sortOrder);
+            queries.put(key, query);
+        }
+        query.addSubscriber(callback);
+        return new Subscription(query, callback);
+    }
+
+    private void removeQuery(SharedQuery query) {
+        queries.remove(query.key);
+        if (queries.isEmpty()) {
+            contentResolver.unregisterContentObserver(observer);
+        }
+    }
+
+    /**
+     * Returns true if one of the URIs is the other one or one of its ancestors, for instance
+     * content://com.example.android.pets/pets and content://com.example.android.pets/pets/5.
+     */
+    private static boolean isRelated(Uri changed, Uri observed) {
+        if (!TextUtils.equals(changed.getAuthority(), observed.getAuthority())) {
+            return false;
+        }
+        List<String> changedSegments = changed.getPathSegments();
+        List<String> observedSegments = observed.getPathSegments();
+        int common = Math.min(changedSegments.size(), observedSegments.size());
+        return changedSegments.subList(0, common).equals(observedSegments.subList(0, common));
+    }
+
+    /**
+     * Returns the URI the provider notifies for changes of the cursor. It is only known from
+     * API 19 on, before that the cursor is assumed to change with anything in the provider.
+     */
+    @SuppressLint("NewApi")
+    private static Uri getNotificationUri(Cursor cursor) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            Uri notificationUri = cursor.getNotificationUri();
+            if (notificationUri != null) {
+                return notificationUri;
+            }
+        }
+        return PetContract.BASE_CONTENT_URI;
+    }
+
+    private static String buildKey(Uri uri, String[] projection, String selection,
+                                   String[] selectionArgs, String sortOrder) {
+        return uri + "|" + Arrays.toString(projection) + "|" + selection + "|"
+                + Arrays.toString(selectionArgs) + "|" + sortOrder;
+    }
+
+    /**
+     * Handle for a subscription, used to stop receiving results.
+     */
+    public final class Subscription {
+
+        private final SharedQuery query;
+        private final Callback callback;
+
+        private Subscription(SharedQuery query, Callback callback) {
+            this.query = query;
+            this.callback = callback;
+        }
+
+        public void unsubscribe() {
+            query.removeSubscriber(callback);
+        }
+    }
+
+    /**
+     * A query shared by all of its subscribers. At most one instance of it is in flight.
+     */
+    private class SharedQuery {
+
+        private final String key;
+        private final Uri uri;
+        private final String[] projection;
+        private final String selection;
+        private final String[] selectionArgs;
+        private final String sortOrder;
+
+        private final List<Callback> subscribers = new ArrayList<>();
+        private Cursor result;
+        // until the first result is there, any change may affect it
+        private Uri notificationUri = PetContract.BASE_CONTENT_URI;
+        private boolean inFlight;
+        private boolean refreshRequested;
+
+        SharedQuery(String key, Uri uri, String[] projection, String selection,
+                    String[] selectionArgs, String sortOrder) {
+            this.key = key;
+            this.uri = uri;
+            this.projection = projection;
+            this.selection = selection;
+            this.selectionArgs = selectionArgs;
+            this.sortOrder = sortOrder;
+        }
+
+        void addSubscriber(Callback callback) {
+            subscribers.add(callback);
+            if (result != null) {
+                callback.onResult(result);
+            } else if (!inFlight) {
+                load();
+            }
+        }
+
+        void removeSubscriber(Callback callback) {
+            subscribers.remove(callback);
+            if (subscribers.isEmpty()) {
+                // a running query stays registered until it is done, so that a new subscriber
+                // waits for it instead of starting the same query a second time
+                if (!inFlight) {
+                    removeQuery(this);
+                }
+                if (result != null) {
+                    result.close();
+                    result = null;
+                }
+            }
+        }
+
+        /**
+         * Returns true if a change of the given URI can change the result: the URI is related
+         * to the query URI or to the URI the provider notifies for the result, see
+         * {@link #isRelated(Uri, Uri)}.
+         */
+        boolean isAffectedBy(Uri changed) {
+            return isRelated(changed, uri) || isRelated(changed, notificationUri);
+        }
+
+        /**
+         * Runs the query again, or remembers to do so if it is already running.
+         */
+        void refresh() {
+            if (inFlight) {
+                refreshRequested = true;
+            } else {
+                load();
+            }
+        }
+
+        private void load() {
+            inFlight = true;
+            refreshRequested = false;
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Cursor cursor = null;
+                    try {
+                        cursor = contentResolver.query(uri, projection, selection, selectionArgs, sortOrder);
+                        if (cursor != null) {
+                            // fill the window here instead of on the main thread
+                            cursor.getCount();
+                        }
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, "Query for " + uri + " failed", e);
+                    }
+                    final Cursor loaded = cursor;
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onLoaded(loaded);
+                        }
+                    });
+                }
+            });
+        }
+
+        private void onLoaded(Cursor cursor) {
+            inFlight = false;
+            if (subscribers.isEmpty()) {
+                // everybody unsubscribed while the query was running
+                removeQuery(this);
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return;
+            }
+            if (cursor != null) {
+                Cursor oldResult = result;
+                result = cursor;
+                notificationUri = getNotificationUri(cursor);
+                for (Callback callback : new ArrayList<>(subscribers)) {
+                    callback.onResult(cursor);
+                }
+                if (oldResult != null) {
+                    oldResult.close();
+                }
+            }
+            if (refreshRequested) {
+                load();
+            }
+        }
+    }
+}
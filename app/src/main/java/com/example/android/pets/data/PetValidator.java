@@ -0,0 +1,187 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+
+import static com.example.android.pets.data.PetContract.ColumnRule;
+import static com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link PetValidator} checks pets against {@link PetEntry#COLUMN_RULES}. The provider, the
+ * editor and batch writers all use it, so the rules live in one place.
+ * <p>
+ * The rules are compiled once, on first use, into parallel arrays, so a check is a loop over
+ * primitive fields. Integer values are read from their boxed form without converting them,
+ * and text is parsed without exceptions. A check returns an error code instead of throwing,
+ * which lets batches reject single rows without allocating anything per row.
+ */
+public final class PetValidator {
+
+    /**
+     * Error code of a valid pet
+     */
+    public static final int VALID = 0;
+
+    // reasons, in the lowest two bits of an error code
+    public static final int ERROR_MISSING = 1;
+    public static final int ERROR_NOT_AN_INTEGER = 2;
+    public static final int ERROR_OUT_OF_RANGE = 3;
+
+    private static final int REASON_BITS = 2;
+    private static final int REASON_MASK = (1 << REASON_BITS) - 1;
+
+    private final ColumnRule[] rules;
+    private final String[] columns;
+    private final boolean[] required;
+    private final boolean[] integer;
+    private final long[] min;
+    private final long[] max;
+
+    private PetValidator(ColumnRule[] rules) {
+        this.rules = rules.clone();
+        int count = rules.length;
+        columns = new String[count];
+        required = new boolean[count];
+        integer = new boolean[count];
+        min = new long[count];
+        max = new long[count];
+        for (int i = 0; i < count; i++) {
+            columns[i] = rules[i].column;
+            required[i] = rules[i].required;
+            integer[i] = rules[i].type == ColumnRule.TYPE_INTEGER;
+            min[i] = rules[i].min;
+            max[i] = rules[i].max;
+        }
+    }
+
+    /**
+     * Compiles the rules when the validator is first used.
+     */
+    private static class Holder {
+        static final PetValidator INSTANCE = new PetValidator(PetEntry.COLUMN_RULES);
+    }
+
+    public static PetValidator getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Checks the values of a pet that is inserted (all required columns must be present) or
+     * updated (only the present columns are checked).
+     *
+     * @return {@link #VALID}, or an error code for {@link #getMessage(int)}.
+     */
+    public int validate(ContentValues values, boolean insert) {
+        for (int i = 0; i < columns.length; i++) {
+            String column = columns[i];
+            if (!values.containsKey(column)) {
+                if (insert && required[i]) {
+                    return errorCode(i, ERROR_MISSING);
+                }
+                continue;
+            }
+            Object value = values.get(column);
+            if (value == null) {
+                if (required[i]) {
+                    return errorCode(i, ERROR_MISSING);
+                }
+                continue;
+            }
+            if (integer[i]) {
+                int reason = checkInteger(value, min[i], max[i]);
+                if (reason != VALID) {
+                    return errorCode(i, reason);
+                }
+            }
+        }
+        return VALID;
+    }
+
+    /**
+     * Checks all rows of a batch without stopping at the first invalid one.
+     *
+     * @param errors receives the error code of every row, must be at least as long as rows.
+     * @return the number of invalid rows.
+     */
+    public int validateBatch(ContentValues[] rows, boolean insert, int[] errors) {
+        int invalid = 0;
+        for (int i = 0; i < rows.length; i++) {
+            errors[i] = validate(rows[i], insert);
+            if (errors[i] != VALID) {
+                invalid++;
+            }
+        }
+        return invalid;
+    }
+
+    /**
+     * Returns the column an error code refers to.
+     */
+    public String getColumn(int errorCode) {
+        return columns[(errorCode >>> REASON_BITS) - 1];
+    }
+
+    /**
+     * Returns the message of the rule an error code refers to.
+     */
+    public String getMessage(int errorCode) {
+        return rules[(errorCode >>> REASON_BITS) - 1].message;
+    }
+
+    /**
+     * Returns the reason of an error code, for instance {@link #ERROR_MISSING}.
+     */
+    public static int getReason(int errorCode) {
+        return errorCode & REASON_MASK;
+    }
+
+    private static int errorCode(int ruleIndex, int reason) {
+        return ((ruleIndex + 1) << REASON_BITS) | reason;
+    }
+
+    private static int checkInteger(Object value, long min, long max) {
+        long number;
+        if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            number = ((Number) value).longValue();
+        } else if (value instanceof Boolean) {
+            number = (Boolean) value ? 1 : 0;
+        } else if ((value instanceof Double || value instanceof Float)
+                && isWholeNumber(((Number) value).doubleValue())) {
+            // SQLite stores a whole REAL in an INTEGER column as an integer
+            number = ((Number) value).longValue();
+        } else if (value instanceof CharSequence && isInteger((CharSequence) value)) {
+            number = Long.parseLong(value.toString());
+        } else {
+            return ERROR_NOT_AN_INTEGER;
+        }
+        return number < min || number > max ? ERROR_OUT_OF_RANGE : VALID;
+    }
+
+    /**
+     * Returns true if the number has no fraction and fits into a long. Numbers with a fraction
+     * are rejected rather than truncated.
+     */
+    private static boolean isWholeNumber(double number) {
+        return number == Math.rint(number) && Math.abs(number) < (double) Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns true if the text is a decimal number that fits into a long, so that parsing it
+     * can't throw.
+     */
+    private static boolean isInteger(CharSequence text) {
+        int length = text.length();
+        int start = length > 0 && text.charAt(0) == '-' ? 1 : 0;
+        // 18 digits always fit into a long
+        if (length == start || length - start > 18) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.android.pets.data;
+
+import android.net.Uri;
+
+/**
+ * Thrown by {@link PetProvider} when a conditional update finds that the pet was changed since
+ * the caller read it, see {@link PetContract.PetEntry#PARAM_EXPECTED_VERSION}.
+ * <p>
+ * It extends {@link IllegalStateException} so that callers in other processes still get an
+ * exception they can catch.
+ */
+public class PetVersionConflictException extends IllegalStateException {
+
+    public PetVersionConflictException(Uri uri, long expectedVersion) {
+        super("Pet " + uri.getLastPathSegment() + " no longer has version " + expectedVersion);
+    }
+}
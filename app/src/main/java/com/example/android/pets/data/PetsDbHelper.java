@@ -1,18 +1,27 @@
 package com.example.android.pets.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class PetsDbHelper extends SQLiteOpenHelper {
 
     public static final String LOG_TAG = PetsDbHelper.class.getSimpleName();
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 7;
     public static final String DATABASE_NAME = "shelter.db";
 
-    private static final String SQL_DELETE_ENTRIES =
-            "DROP TABLE IF EXISTS " + PetContract.PetEntry.TABLE_NAME;
+    /**
+     * Name under which the archive database is attached. The archive lives in a file next to
+     * the shelter database and holds the pets that were moved out of the active pets table.
+     */
+    public static final String ARCHIVE_SCHEMA = "archive";
+    public static final String ARCHIVE_PETS_TABLE = ARCHIVE_SCHEMA + "." + PetContract.PetEntry.TABLE_NAME;
+    private static final String ARCHIVE_FILE_SUFFIX = "-archive";
 
     private static final String SQL_CREATE_PETS_TABLE =
             "CREATE TABLE " + PetContract.PetEntry.TABLE_NAME + " (" +
@@ -22,19 +31,270 @@ public class PetsDbHelper extends SQLiteOpenHelper {
                     PetContract.PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, " +
                     PetContract.PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
 
+    private static final String SQL_ADD_ADOPTED_COLUMN =
+            "ALTER TABLE " + PetContract.PetEntry.TABLE_NAME + " ADD COLUMN " +
+                    PetContract.PetEntry.COLUMN_PET_ADOPTED + " INTEGER NOT NULL DEFAULT 0;";
+
+    private static final String SQL_ADD_LAST_MODIFIED_COLUMN =
+            "ALTER TABLE " + PetContract.PetEntry.TABLE_NAME + " ADD COLUMN " +
+                    PetContract.PetEntry.COLUMN_PET_LAST_MODIFIED + " INTEGER NOT NULL DEFAULT 0;";
+
+    private static final String SQL_ADD_VERSION_COLUMN =
+            "ALTER TABLE " + PetContract.PetEntry.TABLE_NAME + " ADD COLUMN " +
+                    PetContract.PetEntry.COLUMN_PET_VERSION + " INTEGER NOT NULL DEFAULT 1;";
+
+    /**
+     * Indices behind the filter and sort routes of the provider: the name index serves the
+     * name order, the others the gender, breed and weight range filters.
+     */
+    private static final String[] SQL_CREATE_PET_INDICES = {
+            "CREATE INDEX pets_name ON " + PetContract.PetEntry.TABLE_NAME + " (" +
+                    PetContract.PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE);",
+            "CREATE INDEX pets_gender_weight ON " + PetContract.PetEntry.TABLE_NAME + " (" +
+                    PetContract.PetEntry.COLUMN_PET_GENDER + ", " + PetContract.PetEntry.COLUMN_PET_WEIGHT + ");",
+            "CREATE INDEX pets_breed ON " + PetContract.PetEntry.TABLE_NAME + " (" +
+                    PetContract.PetEntry.COLUMN_PET_BREED + " COLLATE NOCASE);",
+            "CREATE INDEX pets_weight ON " + PetContract.PetEntry.TABLE_NAME + " (" +
+                    PetContract.PetEntry.COLUMN_PET_WEIGHT + ");"};
+
+    private static final String SQL_CREATE_DRAFTS_TABLE =
+            "CREATE TABLE " + PetContract.DraftEntry.TABLE_NAME + " (" +
+                    PetContract.DraftEntry.COLUMN_PET_ID + " INTEGER PRIMARY KEY, " +
+                    PetContract.DraftEntry.COLUMN_NAME + " TEXT, " +
+                    PetContract.DraftEntry.COLUMN_BREED + " TEXT, " +
+                    PetContract.DraftEntry.COLUMN_GENDER + " TEXT, " +
+                    PetContract.DraftEntry.COLUMN_WEIGHT + " TEXT, " +
+                    PetContract.DraftEntry.COLUMN_LAST_MODIFIED + " INTEGER NOT NULL);";
+
+    /**
+     * The first character of a pet's name, which is the pet's section in the name order
+     */
+    private static final String SECTION_OF_NEW = "SUBSTR(NEW." + PetContract.PetEntry.COLUMN_PET_NAME + ", 1, 1)";
+    private static final String SECTION_OF_OLD = "SUBSTR(OLD." + PetContract.PetEntry.COLUMN_PET_NAME + ", 1, 1)";
+
+    private static final String SQL_ADD_TO_SECTION =
+            "INSERT OR IGNORE INTO " + PetContract.PetEntry.SECTIONS_TABLE_NAME + " (" +
+                    PetContract.PetEntry.COLUMN_SECTION + ", " + PetContract.PetEntry.COLUMN_SECTION_COUNT + ")" +
+                    " VALUES (" + SECTION_OF_NEW + ", 0); " +
+                    "UPDATE " + PetContract.PetEntry.SECTIONS_TABLE_NAME + " SET " +
+                    PetContract.PetEntry.COLUMN_SECTION_COUNT + " = " + PetContract.PetEntry.COLUMN_SECTION_COUNT + " + 1" +
+                    " WHERE " + PetContract.PetEntry.COLUMN_SECTION + " = " + SECTION_OF_NEW + "; ";
+
+    private static final String SQL_REMOVE_FROM_SECTION =
+            "UPDATE " + PetContract.PetEntry.SECTIONS_TABLE_NAME + " SET " +
+                    PetContract.PetEntry.COLUMN_SECTION_COUNT + " = " + PetContract.PetEntry.COLUMN_SECTION_COUNT + " - 1" +
+                    " WHERE " + PetContract.PetEntry.COLUMN_SECTION + " = " + SECTION_OF_OLD + "; " +
+                    "DELETE FROM " + PetContract.PetEntry.SECTIONS_TABLE_NAME +
+                    " WHERE " + PetContract.PetEntry.COLUMN_SECTION_COUNT + " = 0; ";
+
+    /**
+     * The sections of the name order with the number of pets in each. The section is compared
+     * ignoring case, like the names in the name order, so "b" and "B" share a row. Triggers
+     * keep the counts up to date on every write, so reading the index never scans the pets.
+     */
+    private static final String[] SQL_CREATE_SECTIONS = {
+            "CREATE TABLE " + PetContract.PetEntry.SECTIONS_TABLE_NAME + " (" +
+                    PetContract.PetEntry.COLUMN_SECTION + " TEXT PRIMARY KEY COLLATE NOCASE, " +
+                    PetContract.PetEntry.COLUMN_SECTION_COUNT + " INTEGER NOT NULL);",
+            // Fill the sections once. The name index orders whole names, not SUBSTR(name, 1, 1),
+            // so this is a full scan of the pets table plus a sort, which only runs during the
+            // upgrade; afterwards the triggers keep the counts
+            "INSERT INTO " + PetContract.PetEntry.SECTIONS_TABLE_NAME + " (" +
+                    PetContract.PetEntry.COLUMN_SECTION + ", " + PetContract.PetEntry.COLUMN_SECTION_COUNT + ")" +
+                    " SELECT SUBSTR(" + PetContract.PetEntry.COLUMN_PET_NAME + ", 1, 1), COUNT(*)" +
+                    " FROM " + PetContract.PetEntry.TABLE_NAME +
+                    " GROUP BY SUBSTR(" + PetContract.PetEntry.COLUMN_PET_NAME + ", 1, 1) COLLATE NOCASE;",
+            "CREATE TRIGGER pets_section_insert AFTER INSERT ON " + PetContract.PetEntry.TABLE_NAME +
+                    " BEGIN " + SQL_ADD_TO_SECTION + "END;",
+            "CREATE TRIGGER pets_section_delete AFTER DELETE ON " + PetContract.PetEntry.TABLE_NAME +
+                    " BEGIN " + SQL_REMOVE_FROM_SECTION + "END;",
+            "CREATE TRIGGER pets_section_update AFTER UPDATE OF " + PetContract.PetEntry.COLUMN_PET_NAME +
+                    " ON " + PetContract.PetEntry.TABLE_NAME +
+                    " WHEN " + SECTION_OF_OLD + " != " + SECTION_OF_NEW + " COLLATE NOCASE" +
+                    " BEGIN " + SQL_ADD_TO_SECTION + SQL_REMOVE_FROM_SECTION + "END;"};
+
+    /**
+     * Tables that are derived from other tables by triggers. Backups and restores skip them,
+     * the triggers rebuild them from the copied rows.
+     */
+    public static final String[] DERIVED_TABLES = {PetContract.PetEntry.SECTIONS_TABLE_NAME};
+
+    private static final String SQL_CREATE_WEIGHTS_TABLE =
+            "CREATE TABLE " + PetContract.WeightEntry.TABLE_NAME + " (" +
+                    PetContract.WeightEntry.COLUMN_PET_ID + " INTEGER NOT NULL, " +
+                    PetContract.WeightEntry.COLUMN_TIMESTAMP + " INTEGER NOT NULL, " +
+                    PetContract.WeightEntry.COLUMN_WEIGHT + " INTEGER NOT NULL, " +
+                    "PRIMARY KEY (" + PetContract.WeightEntry.COLUMN_PET_ID + ", " +
+                    PetContract.WeightEntry.COLUMN_TIMESTAMP + "));";
+
+    private static final String SQL_CREATE_WEIGHT_ROLLUPS_TABLE =
+            "CREATE TABLE " + PetContract.WeightEntry.ROLLUP_TABLE_NAME + " (" +
+                    PetContract.WeightEntry.COLUMN_PET_ID + " INTEGER NOT NULL, " +
+                    PetContract.WeightEntry.COLUMN_RESOLUTION + " TEXT NOT NULL, " +
+                    PetContract.WeightEntry.COLUMN_BUCKET_START + " INTEGER NOT NULL, " +
+                    PetContract.WeightEntry.COLUMN_COUNT + " INTEGER NOT NULL, " +
+                    PetContract.WeightEntry.COLUMN_SUM + " INTEGER NOT NULL, " +
+                    PetContract.WeightEntry.COLUMN_MIN_WEIGHT + " INTEGER NOT NULL, " +
+                    PetContract.WeightEntry.COLUMN_MAX_WEIGHT + " INTEGER NOT NULL, " +
+                    "PRIMARY KEY (" + PetContract.WeightEntry.COLUMN_PET_ID + ", " +
+                    PetContract.WeightEntry.COLUMN_RESOLUTION + ", " +
+                    PetContract.WeightEntry.COLUMN_BUCKET_START + "));";
+
 
     public PetsDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    private final Context context;
+    private final StorageProfile storageProfile;
+    private final CompiledStatements compiledStatements = new CompiledStatements();
+
+    /**
+     * True from creating the database until it is opened, see {@link StorageProfile#apply}
+     */
+    private boolean created;
+
+    public PetsDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        this.context = context;
+        this.storageProfile = StorageProfile.select(context);
+    }
+
+    /**
+     * Returns the storage profile chosen for the memory of this device.
+     */
+    public StorageProfile getStorageProfile() {
+        return storageProfile;
+    }
+
+    /**
+     * Returns the compiled statements of this database, they are closed with it.
+     */
+    CompiledStatements getCompiledStatements() {
+        return compiledStatements;
+    }
+
+    @Override
+    public synchronized void close() {
+        compiledStatements.close();
+        super.close();
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_PETS_TABLE);
+        onUpgrade(db, 1, DATABASE_VERSION);
+        created = true;
     }
 
+    /**
+     * Migrates the schema one version at a time, keeping the existing pets.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        if (oldVersion < 2) {
+            db.execSQL(SQL_CREATE_WEIGHTS_TABLE);
+            db.execSQL(SQL_CREATE_WEIGHT_ROLLUPS_TABLE);
+        }
+        if (oldVersion < 3) {
+            db.execSQL(SQL_ADD_ADOPTED_COLUMN);
+            db.execSQL(SQL_ADD_LAST_MODIFIED_COLUMN);
+            // Existing pets count as modified now, so they don't go to the archive right away
+            db.execSQL("UPDATE " + PetContract.PetEntry.TABLE_NAME + " SET " +
+                    PetContract.PetEntry.COLUMN_PET_LAST_MODIFIED + " = " + System.currentTimeMillis());
+        }
+        if (oldVersion < 4) {
+            db.execSQL(SQL_ADD_VERSION_COLUMN);
+        }
+        if (oldVersion < 5) {
+            for (String sql : SQL_CREATE_PET_INDICES) {
+                db.execSQL(sql);
+            }
+        }
+        if (oldVersion < 6) {
+            db.execSQL(SQL_CREATE_DRAFTS_TABLE);
+        }
+        if (oldVersion < 7) {
+            for (String sql : SQL_CREATE_SECTIONS) {
+                db.execSQL(sql);
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the file that holds the archive of the given shelter database.
+     */
+    public static String getArchiveDatabaseName(String databaseName) {
+        return databaseName + ARCHIVE_FILE_SUFFIX;
+    }
+
+    /**
+     * Applies the storage profile, then attaches the archive database and brings its pets
+     * table up to date with the schema of the active pets table.
+     * <p>
+     * The profile is applied here rather than in onConfigure(), which only exists from API 16
+     * on. There is a single connection, so it is configured exactly once either way.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        storageProfile.apply(db, created);
+        created = false;
+        String archivePath = context.getDatabasePath(getArchiveDatabaseName(getDatabaseName())).getPath();
+        db.execSQL("ATTACH DATABASE ? AS " + ARCHIVE_SCHEMA, new Object[]{archivePath});
+
+        // The archive table only needs the columns, not the constraints of the pets table
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + ARCHIVE_PETS_TABLE +
+                " AS SELECT * FROM main." + PetContract.PetEntry.TABLE_NAME + " WHERE 0");
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + ARCHIVE_SCHEMA + ".archived_pets_id ON " +
+                PetContract.PetEntry.TABLE_NAME + " (" + PetContract.PetEntry._ID + ")");
+
+        Map<String, String> archiveColumns = getColumnDefinitions(db, ARCHIVE_SCHEMA);
+        for (Map.Entry<String, String> column : getColumnDefinitions(db, "main").entrySet()) {
+            if (!archiveColumns.containsKey(column.getKey())) {
+                db.execSQL("ALTER TABLE " + ARCHIVE_PETS_TABLE + " ADD COLUMN " +
+                        column.getKey() + " " + column.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the columns of the pets table in the given schema, mapped to
+     * their type and default value.
+     */
+    private static Map<String, String> getColumnDefinitions(SQLiteDatabase db, String schema) {
+        Map<String, String> columns = new LinkedHashMap<>();
+        Cursor cursor = db.rawQuery("PRAGMA " + schema + ".table_info(" +
+                PetContract.PetEntry.TABLE_NAME + ")", null);
+        try {
+            int nameIndex = cursor.getColumnIndex("name");
+            int typeIndex = cursor.getColumnIndex("type");
+            int defaultIndex = cursor.getColumnIndex("dflt_value");
+            while (cursor.moveToNext()) {
+                String definition = cursor.getString(typeIndex);
+                if (!cursor.isNull(defaultIndex)) {
+                    definition += " DEFAULT " + cursor.getString(defaultIndex);
+                }
+                columns.put(cursor.getString(nameIndex), definition);
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+
+    /**
+     * Returns the comma separated column names of the pets table, in the order of the
+     * active pets table. Use it to copy rows between the active and the archived pets.
+     */
+    public static String getPetColumnList(SQLiteDatabase db) {
+        StringBuilder builder = new StringBuilder();
+        for (String column : getColumnDefinitions(db, "main").keySet()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(column);
+        }
+        return builder.toString();
     }
 }
@@ -0,0 +1,152 @@
+package com.example.android.pets.data;
+
+import android.content.pm.PackageManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+/**
+ * {@link ProviderAdmission} decides which calls the provider serves, and when, so that other
+ * apps reading the pets can't starve this app's own screens.
+ * <p>
+ * The shelter databases have a single connection, see {@link PetsDbHelper}, so a slow query
+ * holds up every other query. Calls from this app are always admitted. Calls from other apps:
+ * <ul>
+ * <li>are rate limited per app by a token bucket, which allows short bursts,</li>
+ * <li>wait while a call of this app is running, and only a few of them run at once,</li>
+ * <li>get at most {@link #MAX_EXTERNAL_ROWS} rows per query, see PetProvider,</li>
+ * <li>have their queries cancelled after {@link #MAX_EXTERNAL_QUERY_MILLIS}, from API 16 on.</li>
+ * </ul>
+ * Apps are told apart by their uid, which is what the platform vouches for; the calling package
+ * is only available from API 19 on. Packages that share a uid share a quota.
+ */
+public final class ProviderAdmission {
+
+    /**
+     * Maximum number of rows of a query of another app, per shelter
+     */
+    public static final int MAX_EXTERNAL_ROWS = 500;
+
+    /**
+     * Maximum time a query of another app runs before it's cancelled
+     */
+    public static final long MAX_EXTERNAL_QUERY_MILLIS = 5000;
+
+    /**
+     * Number of calls another app can make at once after being idle
+     */
+    private static final int BUCKET_CAPACITY = 20;
+
+    /**
+     * Number of calls per second another app can make in the long run
+     */
+    private static final int TOKENS_PER_SECOND = 5;
+
+    /**
+     * Number of calls of other apps that run at the same time
+     */
+    private static final int MAX_EXTERNAL_CALLS = 2;
+
+    /**
+     * Maximum time a call of another app waits to be admitted before it's rejected
+     */
+    private static final long MAX_WAIT_MILLIS = 2000;
+
+    private final int ownUid = Process.myUid();
+    private final PackageManager packageManager;
+
+    // guarded by this
+    private final SparseArray<TokenBucket> buckets = new SparseArray<>();
+    private int internalCalls;
+    private int externalCalls;
+
+    public ProviderAdmission(PackageManager packageManager) {
+        this.packageManager = packageManager;
+    }
+
+    /**
+     * Returns true if the uid doesn't belong to this app.
+     */
+    public boolean isExternal(int uid) {
+        return uid != ownUid;
+    }
+
+    /**
+     * Starts a call of this app. Calls of other apps wait until it is done.
+     */
+    public synchronized void enterInternal() {
+        internalCalls++;
+    }
+
+    public synchronized void exitInternal() {
+        internalCalls--;
+        if (internalCalls == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Starts a call of another app, once no call of this app is running and there is a free
+     * slot for other apps.
+     *
+     * @throws QuotaExceededException if the app is over its rate limit, or the provider stays
+     *                                busy for too long.
+     */
+    public synchronized void enterExternal(int uid) {
+        TokenBucket bucket = buckets.get(uid);
+        if (bucket == null) {
+            bucket = new TokenBucket();
+            buckets.put(uid, bucket);
+        }
+        if (!bucket.tryTake(SystemClock.elapsedRealtime())) {
+            throw new QuotaExceededException(getName(uid) + " exceeded its quota of "
+                    + TOKENS_PER_SECOND + " calls per second");
+        }
+
+        long deadline = SystemClock.elapsedRealtime() + MAX_WAIT_MILLIS;
+        while (internalCalls > 0 || externalCalls >= MAX_EXTERNAL_CALLS) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                throw new QuotaExceededException("Too busy to serve " + getName(uid));
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new QuotaExceededException("Interrupted while admitting " + getName(uid));
+            }
+        }
+        externalCalls++;
+    }
+
+    public synchronized void exitExternal() {
+        externalCalls--;
+        notifyAll();
+    }
+
+    private String getName(int uid) {
+        String name = packageManager.getNameForUid(uid);
+        return name != null ? name : "uid " + uid;
+    }
+
+    /**
+     * Token bucket of one app. It holds up to {@link #BUCKET_CAPACITY} tokens, is refilled at
+     * {@link #TOKENS_PER_SECOND}, and every call takes a token.
+     */
+    private static class TokenBucket {
+
+        private double tokens = BUCKET_CAPACITY;
+        private long lastRefillMillis = SystemClock.elapsedRealtime();
+
+        boolean tryTake(long nowMillis) {
+            tokens = Math.min(BUCKET_CAPACITY,
+                    tokens + (nowMillis - lastRefillMillis) * TOKENS_PER_SECOND / 1000.0);
+            lastRefillMillis = nowMillis;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
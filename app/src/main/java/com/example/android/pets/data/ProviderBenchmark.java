@@ -0,0 +1,151 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link ProviderBenchmark} compares the latency of the provider's call() methods with the
+ * equivalent query(). For debugging purposes only, don't run it on the main thread.
+ */
+public class ProviderBenchmark {
+
+    public static final String LOG_TAG = ProviderBenchmark.class.getSimpleName();
+
+    private static final int WARM_UP_ITERATIONS = 50;
+    private static final int ITERATIONS = 500;
+
+    private final ContentResolver contentResolver;
+
+    public ProviderBenchmark(ContentResolver contentResolver) {
+        this.contentResolver = contentResolver;
+    }
+
+    /**
+     * One of the operations measured by the benchmark.
+     */
+    private interface Operation {
+        void run();
+    }
+
+    /**
+     * Runs the benchmark against the default shelter.
+     *
+     * @return a report with the median latency of each operation.
+     */
+    public String run() {
+        final long petId = findAnyPetId();
+        final Uri petUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, petId);
+        final String petIdArg = String.valueOf(petId);
+        final Bundle nameExtras = new Bundle();
+        nameExtras.putString(PetContract.EXTRA_COLUMN, PetEntry.COLUMN_PET_NAME);
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%d iterations, median latency in µs\n", ITERATIONS));
+
+        appendComparison(report, "count", new Operation() {
+            @Override
+            public void run() {
+                Cursor cursor = contentResolver.query(PetEntry.CONTENT_URI,
+                        new String[]{"COUNT(*)"}, null, null, null);
+                if (cursor != null) {
+                    cursor.moveToFirst();
+                    cursor.getLong(0);
+                    cursor.close();
+                }
+            }
+        }, new Operation() {
+            @Override
+            public void run() {
+                contentResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_COUNT, null, null);
+            }
+        });
+
+        appendComparison(report, "exists", new Operation() {
+            @Override
+            public void run() {
+                Cursor cursor = contentResolver.query(petUri,
+                        new String[]{PetEntry._ID}, null, null, null);
+                if (cursor != null) {
+                    cursor.moveToFirst();
+                    cursor.close();
+                }
+            }
+        }, new Operation() {
+            @Override
+            public void run() {
+                contentResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_EXISTS, petIdArg, null);
+            }
+        });
+
+        appendComparison(report, "get name", new Operation() {
+            @Override
+            public void run() {
+                Cursor cursor = contentResolver.query(petUri,
+                        new String[]{PetEntry.COLUMN_PET_NAME}, null, null, null);
+                if (cursor != null) {
+                    if (cursor.moveToFirst()) {
+                        cursor.getString(0);
+                    }
+                    cursor.close();
+                }
+            }
+        }, new Operation() {
+            @Override
+            public void run() {
+                contentResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_GET_VALUE, petIdArg, nameExtras);
+            }
+        });
+
+        Log.d(LOG_TAG, report.toString());
+        return report.toString();
+    }
+
+    private void appendComparison(StringBuilder report, String name, Operation query, Operation call) {
+        long queryMicros = measure(query);
+        long callMicros = measure(call);
+        report.append(String.format(Locale.US, "%s: query %d, call %d\n", name, queryMicros, callMicros));
+    }
+
+    /**
+     * Returns the median latency of the operation in microseconds.
+     */
+    private static long measure(Operation operation) {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            operation.run();
+        }
+        long[] nanos = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            operation.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos[ITERATIONS / 2] / 1000;
+    }
+
+    /**
+     * Returns the id of some pet, or 1 if there are none; lookups of a missing pet are
+     * measured then.
+     */
+    private long findAnyPetId() {
+        Cursor cursor = contentResolver.query(PetEntry.CONTENT_URI,
+                new String[]{PetEntry._ID}, null, null, PetEntry._ID + " LIMIT 1");
+        if (cursor == null) {
+            return 1;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 1;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * {@link ProviderTrace} records the calls the provider receives to a compact binary file, so
+ * that the real mix of calls can be replayed later, see {@link TraceReplayer}. Recording is
+ * opt-in, see the record_trace resource.
+ * <p>
+ * No pet data is recorded. A call is recorded by the shape of its URI, with ids and free text
+ * replaced by placeholders, its projection, its selection with string literals removed, the
+ * number of selection arguments, the names of the columns it writes, and its timing.
+ * <p>
+ * The file starts with a header, followed by records. Every distinct string is written once,
+ * the first time it is used, and referred to by its number afterwards. Numbers are written as
+ * variable length integers, so most calls take around a dozen bytes.
+ */
+public final class ProviderTrace implements Closeable {
+
+    public static final String LOG_TAG = ProviderTrace.class.getSimpleName();
+
+    // operations, a record starts with one of them
+    public static final int OP_QUERY = 1;
+    public static final int OP_INSERT = 2;
+    public static final int OP_BULK_INSERT = 3;
+    public static final int OP_UPDATE = 4;
+    public static final int OP_DELETE = 5;
+    public static final int OP_CALL = 6;
+    public static final int OP_APPLY_BATCH = 7;
+
+    /**
+     * Flag of a call that was made by a batch, it is followed by the {@link #OP_APPLY_BATCH}
+     * record of that batch
+     */
+    public static final int FLAG_IN_BATCH = 1;
+
+    /**
+     * Placeholder for a number in a URI pattern
+     */
+    public static final String NUMBER = "#";
+
+    /**
+     * Placeholder for free text in a URI pattern
+     */
+    public static final String TEXT = "*";
+
+    private static final int MAGIC = 0x50455454;
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Tag of a string definition, operations are never 0
+     */
+    private static final int TAG_STRING = 0;
+
+    /**
+     * String number of a missing string, the first string gets number 1
+     */
+    private static final int NO_STRING = 0;
+
+    /**
+     * Separates the elements of a list in a single string
+     */
+    private static final char SEPARATOR = '\u001f';
+
+    private static final long FLUSH_INTERVAL_NANOS = 1000000000L;
+
+    private static final String TRACE_DIRECTORY = "traces";
+    private static final String TRACE_PREFIX = "provider-";
+    private static final String TRACE_SUFFIX = ".trace";
+
+    /**
+     * Number of trace files kept, older ones are deleted when a new trace starts
+     */
+    private static final int MAX_TRACE_FILES = 5;
+
+    /**
+     * The trace that is being recorded in this process, guarded by ProviderTrace.class
+     */
+    private static ProviderTrace current;
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+
+    private final DataOutputStream out;
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Integer> stringNumbers = new HashMap<>();
+    private long lastFlushNanos = startNanos;
+    private boolean failed;
+
+    private ProviderTrace(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Starts recording to a new trace file.
+     *
+     * @return the trace, or null if the file can't be created.
+     */
+    public static ProviderTrace start(Context context) {
+        File directory = new File(context.getFilesDir(), TRACE_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(LOG_TAG, "Failed to create " + directory);
+            return null;
+        }
+        // make room for the new trace
+        List<File> traces = listTraces(directory);
+        for (int i = MAX_TRACE_FILES - 1; i < traces.size(); i++) {
+            if (!traces.get(i).delete()) {
+                Log.w(LOG_TAG, "Failed to delete " + traces.get(i));
+            }
+        }
+        File file = new File(directory, TRACE_PREFIX + System.currentTimeMillis() + TRACE_SUFFIX);
+        try {
+            Log.i(LOG_TAG, "Recording provider calls to " + file);
+            ProviderTrace trace = new ProviderTrace(file);
+            synchronized (ProviderTrace.class) {
+                current = trace;
+            }
+            return trace;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to create " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the most recent trace file, or null if nothing was recorded yet. The trace that
+     * is being recorded is flushed first, so that the file holds every call recorded so far.
+     */
+    public static File findLatestTrace(Context context) {
+        ProviderTrace trace;
+        synchronized (ProviderTrace.class) {
+            trace = current;
+        }
+        if (trace != null) {
+            trace.flush();
+        }
+        List<File> traces = listTraces(new File(context.getFilesDir(), TRACE_DIRECTORY));
+        return traces.isEmpty() ? null : traces.get(0);
+    }
+
+    /**
+     * Returns the trace files in the directory, the most recent first.
+     */
+    private static List<File> listTraces(File directory) {
+        List<File> traces = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(TRACE_PREFIX) && name.endsWith(TRACE_SUFFIX)) {
+                    traces.add(file);
+                }
+            }
+        }
+        Collections.sort(traces, new Comparator<File>() {
+            @Override
+            public int compare(File left, File right) {
+                long leftModified = left.lastModified();
+                long rightModified = right.lastModified();
+                return leftModified > rightModified ? -1 : (leftModified == rightModified ? 0 : 1);
+            }
+        });
+        return traces;
+    }
+
+    /**
+     * Returns the pattern of a URI: its path and query relative to the authority, with numbers
+     * replaced by {@link #NUMBER} and shelter ids and breeds replaced by {@link #TEXT}.
+     */
+    public static String toPattern(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        StringBuilder pattern = new StringBuilder();
+        for (int i = 0; i < segments.size(); i++) {
+            String segment = segments.get(i);
+            String previous = i > 0 ? segments.get(i - 1) : null;
+            if (i > 0) {
+                pattern.append('/');
+            }
+            // the drafts of new pets have negative ids
+            if (isNumber(segment) || PetContract.PATH_DRAFTS.equals(previous)) {
+                pattern.append(NUMBER);
+            } else if (PetContract.PATH_BREED.equals(previous)
+                    || (PetContract.PATH_SHELTERS.equals(previous) && !PetContract.PATH_PETS.equals(segment))) {
+                pattern.append(TEXT);
+            } else {
+                pattern.append(segment);
+            }
+        }
+        String separator = "?";
+        for (String name : uri.getQueryParameterNames()) {
+            String value = uri.getQueryParameter(name);
+            pattern.append(separator).append(name).append('=').append(isNumber(value) ? NUMBER : value);
+            separator = "&";
+        }
+        return pattern.toString();
+    }
+
+    private static boolean isNumber(String text) {
+        if (TextUtils.isEmpty(text)) {
+            return false;
+        }
+        return TextUtils.isDigitsOnly(text.charAt(0) == '-' ? text.substring(1) : text);
+    }
+
+    /**
+     * Records a call. Writing the trace never fails the call; after an error the trace stops.
+     *
+     * @param pattern    the URI pattern, see {@link #toPattern(Uri)}, or the method of a
+     *                   {@link #OP_CALL}.
+     * @param columns    the columns written by the call.
+     * @param rows       the number of rows written by a bulk insert or operations of a batch.
+     * @param startNanos the {@link System#nanoTime()} the call started at.
+     */
+    public synchronized void record(int operation, int flags, String pattern, String[] projection,
+                                    String selection, int argCount, String sortOrder,
+                                    Set<String> columns, int rows, long startNanos) {
+        if (failed) {
+            return;
+        }
+        long now = System.nanoTime();
+        try {
+            int patternNumber = stringNumber(pattern);
+            int projectionNumber = stringNumber(projection == null ? null : join(projection));
+            int selectionNumber = stringNumber(selection == null ? null
+                    : STRING_LITERAL.matcher(selection).replaceAll("''"));
+            int sortOrderNumber = stringNumber(sortOrder);
+            int columnsNumber = stringNumber(columns == null || columns.isEmpty() ? null
+                    : join(new TreeSet<>(columns)));
+
+            out.writeByte(operation);
+            out.writeByte(flags);
+            writeVarLong(patternNumber);
+            writeVarLong(projectionNumber);
+            writeVarLong(selectionNumber);
+            writeVarLong(argCount);
+            writeVarLong(sortOrderNumber);
+            writeVarLong(columnsNumber);
+            writeVarLong(rows);
+            writeVarLong((startNanos - this.startNanos) / 1000);
+            writeVarLong((now - startNanos) / 1000);
+
+            // losing the last second of calls when the process dies is acceptable
+            if (now - lastFlushNanos > FLUSH_INTERVAL_NANOS) {
+                out.flush();
+                lastFlushNanos = now;
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write the trace, recording stops", e);
+            failed = true;
+        }
+    }
+
+    private int stringNumber(String string) throws IOException {
+        if (string == null) {
+            return NO_STRING;
+        }
+        Integer number = stringNumbers.get(string);
+        if (number == null) {
+            number = stringNumbers.size() + 1;
+            stringNumbers.put(string, number);
+            out.writeByte(TAG_STRING);
+            out.writeUTF(string);
+        }
+        return number;
+    }
+
+    private static String join(Iterable<String> strings) {
+        return TextUtils.join(String.valueOf(SEPARATOR), strings);
+    }
+
+    private static String join(String[] strings) {
+        return TextUtils.join(String.valueOf(SEPARATOR), strings);
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Writes the buffered records to the file.
+     */
+    public synchronized void flush() {
+        if (failed) {
+            return;
+        }
+        try {
+            out.flush();
+            lastFlushNanos = System.nanoTime();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write the trace, recording stops", e);
+            failed = true;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        synchronized (ProviderTrace.class) {
+            if (current == this) {
+                current = null;
+            }
+        }
+        failed = true;
+        out.close();
+    }
+
+    /**
+     * One recorded call.
+     */
+    public static class Record {
+        public int operation;
+        public int flags;
+        public String pattern;
+        public String[] projection;
+        public String selection;
+        public int argCount;
+        public String sortOrder;
+        public String[] columns;
+        public int rows;
+        public long startMicros;
+        public long durationMicros;
+    }
+
+    /**
+     * Reads the records of a trace file in the order they were recorded.
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+
+        public Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException(file + " is not a provider trace");
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                in.close();
+                throw new IOException("Unsupported trace version " + version + " of " + file);
+            }
+            // the wall clock time the recording started at
+            in.readLong();
+            // strings are numbered from 1
+            strings.add(null);
+        }
+
+        /**
+         * Returns the next record, or null at the end of the trace. A record that was cut off
+         * because the recording process died counts as the end.
+         */
+        public Record next() throws IOException {
+            try {
+                int tag = in.readUnsignedByte();
+                while (tag == TAG_STRING) {
+                    strings.add(in.readUTF());
+                    tag = in.readUnsignedByte();
+                }
+                Record record = new Record();
+                record.operation = tag;
+                record.flags = in.readUnsignedByte();
+                record.pattern = readString();
+                record.projection = split(readString());
+                record.selection = readString();
+                record.argCount = (int) readVarLong();
+                record.sortOrder = readString();
+                record.columns = split(readString());
+                record.rows = (int) readVarLong();
+                record.startMicros = readVarLong();
+                record.durationMicros = readVarLong();
+                return record;
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        private String readString() throws IOException {
+            int number = (int) readVarLong();
+            if (number >= strings.size()) {
+                throw new IOException("Undefined string " + number);
+            }
+            return strings.get(number);
+        }
+
+        private static String[] split(String string) {
+            return string == null ? null : TextUtils.split(string, String.valueOf(SEPARATOR));
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
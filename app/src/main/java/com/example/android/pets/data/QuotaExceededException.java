@@ -0,0 +1,15 @@
+package com.example.android.pets.data;
+
+/**
+ * Thrown by {@link PetProvider} when another app makes calls faster than its quota allows, or
+ * when the provider is too busy to admit it, see {@link ProviderAdmission}.
+ * <p>
+ * It extends {@link IllegalStateException} so that callers in other processes still get an
+ * exception they can catch.
+ */
+public class QuotaExceededException extends IllegalStateException {
+
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
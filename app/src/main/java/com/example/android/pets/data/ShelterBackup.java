@@ -0,0 +1,516 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link ShelterBackup} copies a shelter database into a backup file while the provider keeps
+ * writing to it.
+ * <p>
+ * Android does not expose the SQLite online backup API, so the copy is done in small steps
+ * instead: every step reads one page of rows (ordered by rowid) in its own short statement and
+ * then pauses, so writers only ever wait for a single page.
+ * <p>
+ * A write between two steps would leave the backup torn, so every step checks SQLite's
+ * total_changes() of the source connection, which every write of the provider goes through,
+ * and the copy starts over if it moved. The source is never locked for the whole copy, so
+ * while the shelter keeps changing, for instance while a draft is written every few seconds,
+ * the backup gives up after a few attempts and is tried again later.
+ * <p>
+ * The archived pets live in a database of their own, attached to the shelter database, see
+ * {@link PetsDbHelper}. They are backed up into a second file next to the backup, see
+ * {@link #getArchiveFile(File)}, within the same copy. The two files replace the previous pair
+ * in a fixed order, so that a pair torn by a failed rename or a crash can always be completed
+ * or rolled back, see {@link #recover(File)}.
+ */
+public class ShelterBackup {
+
+    public static final String LOG_TAG = ShelterBackup.class.getSimpleName();
+
+    /**
+     * Number of rows copied per step
+     */
+    private static final int PAGE_ROWS = 200;
+
+    /**
+     * Pause between two steps, gives waiting writers the database connection
+     */
+    private static final long STEP_PAUSE_MILLIS = 5;
+
+    /**
+     * Number of times the copy is tried before the backup gives up
+     */
+    private static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * Pause before the second attempt, doubled for every further attempt, so that a burst of
+     * writes can pass
+     */
+    private static final long RETRY_PAUSE_MILLIS = 1000;
+
+    /**
+     * Passed to copyTable() when the source can't change during the copy, like a backup that
+     * is being restored
+     */
+    private static final long NO_CHANGE_CHECK = -1;
+
+    private static final String BACKUP_ROWID = "backup_rowid";
+
+    private static final String MAIN_SCHEMA = "main";
+    private static final String ARCHIVE_FILE_SUFFIX = "-archive";
+    private static final String PREVIOUS_FILE_SUFFIX = ".previous";
+
+    /**
+     * Copies the source database into the target file. The backup is written to a temporary
+     * file first and only replaces the target once its integrity was verified, so a failed
+     * backup never destroys the previous one.
+     *
+     * @return true if the backup was written and verified, false if it failed or the source
+     * kept changing during every attempt.
+     */
+    public boolean backup(SQLiteDatabase source, File target) {
+        File directory = target.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            Log.e(LOG_TAG, "Cannot create backup directory " + directory);
+            return false;
+        }
+        recover(target);
+        File temporary = new File(target.getPath() + ".tmp");
+        File temporaryArchive = new File(getArchiveFile(target).getPath() + ".tmp");
+
+        long start = SystemClock.elapsedRealtime();
+        for (int attempt = 1; ; attempt++) {
+            deleteDatabaseFile(temporary);
+            deleteDatabaseFile(temporaryArchive);
+            boolean consistent;
+            try {
+                consistent = copyDatabase(source, temporary, temporaryArchive);
+            } catch (SQLiteException e) {
+                Log.e(LOG_TAG, "Backup to " + target + " failed", e);
+                deleteDatabaseFile(temporary);
+                deleteDatabaseFile(temporaryArchive);
+                return false;
+            }
+            if (consistent) {
+                break;
+            }
+            if (attempt == MAX_ATTEMPTS) {
+                Log.w(LOG_TAG, "Shelter changed during all " + MAX_ATTEMPTS + " backup attempts, giving up");
+                deleteDatabaseFile(temporary);
+                deleteDatabaseFile(temporaryArchive);
+                return false;
+            }
+            Log.d(LOG_TAG, "Shelter changed during backup attempt " + attempt + ", starting over");
+            SystemClock.sleep(RETRY_PAUSE_MILLIS << (attempt - 1));
+        }
+
+        if (!verify(temporary) || !verify(temporaryArchive)) {
+            deleteDatabaseFile(temporary);
+            deleteDatabaseFile(temporaryArchive);
+            return false;
+        }
+        if (!publish(temporary, temporaryArchive, target)) {
+            Log.e(LOG_TAG, "Cannot move backup to " + target);
+            deleteDatabaseFile(temporary);
+            deleteDatabaseFile(temporaryArchive);
+            return false;
+        }
+        Log.d(LOG_TAG, "Backup to " + target + " took " + (SystemClock.elapsedRealtime() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * Returns the file that holds the archived pets of the given backup.
+     */
+    public static File getArchiveFile(File backup) {
+        return new File(backup.getPath() + ARCHIVE_FILE_SUFFIX);
+    }
+
+    /**
+     * Returns true if there is a backup in the given file, after recovering from a backup that
+     * was interrupted while it replaced the previous one.
+     */
+    public boolean exists(File backup) {
+        recover(backup);
+        return backup.exists();
+    }
+
+    /**
+     * Replaces the previous pair of backup files with the new pair. The previous pair is moved
+     * aside first, the archive before the main file, then the new pair takes its place, the
+     * main file last. The main file is only ever there together with its own archive, so
+     * {@link #recover(File)} can tell from the files that are left which pair is complete.
+     *
+     * @return false if a rename failed, the previous pair is back in place then.
+     */
+    private boolean publish(File temporary, File temporaryArchive, File target) {
+        File archiveTarget = getArchiveFile(target);
+        File previous = getPreviousFile(target);
+        File previousArchive = getArchiveFile(previous);
+        if ((archiveTarget.exists() && !archiveTarget.renameTo(previousArchive))
+                || (target.exists() && !target.renameTo(previous))
+                || !temporaryArchive.renameTo(archiveTarget)
+                || !temporary.renameTo(target)) {
+            recover(target);
+            return false;
+        }
+        // the previous archive goes first, a previous main file left behind still tells
+        // recover() that the new pair is complete
+        deleteDatabaseFile(previousArchive);
+        deleteDatabaseFile(previous);
+        return true;
+    }
+
+    /**
+     * Completes or rolls back a replacement of the backup pair that was interrupted, see
+     * {@link #publish(File, File, File)}:
+     * <ul>
+     * <li>a new main file means the new pair is complete, the previous one is deleted,</li>
+     * <li>a previous main file without a new one means the new pair is incomplete, the
+     * previous pair is moved back,</li>
+     * <li>a previous archive alone was moved aside while its main file stayed, it is moved
+     * back.</li>
+     * </ul>
+     */
+    private static void recover(File target) {
+        File archiveTarget = getArchiveFile(target);
+        File previous = getPreviousFile(target);
+        File previousArchive = getArchiveFile(previous);
+        if (previous.exists()) {
+            if (target.exists()) {
+                deleteDatabaseFile(previousArchive);
+                deleteDatabaseFile(previous);
+                return;
+            }
+            Log.w(LOG_TAG, "Rolling back the interrupted backup to " + target);
+            // the previous archive, if any, was moved aside before the main file, so an
+            // archive next to the missing main file is always the new one
+            deleteDatabaseFile(archiveTarget);
+            if (previousArchive.exists() && !previousArchive.renameTo(archiveTarget)) {
+                Log.e(LOG_TAG, "Cannot move back " + previousArchive);
+                return;
+            }
+            if (!previous.renameTo(target)) {
+                Log.e(LOG_TAG, "Cannot move back " + previous);
+            }
+        } else if (previousArchive.exists() && !archiveTarget.exists()) {
+            if (!previousArchive.renameTo(archiveTarget)) {
+                Log.e(LOG_TAG, "Cannot move back " + previousArchive);
+            }
+        }
+    }
+
+    private static File getPreviousFile(File backup) {
+        return new File(backup.getPath() + PREVIOUS_FILE_SUFFIX);
+    }
+
+    /**
+     * Copies the schema and the rows of the source into new database files, one for the
+     * shelter and one for its archive. The copy pauses between pages and gives up when the
+     * source changes.
+     *
+     * @return true if the copy is consistent, false if the source changed during the copy.
+     */
+    private boolean copyDatabase(SQLiteDatabase source, File file, File archiveFile) {
+        SQLiteDatabase backupDb = SQLiteDatabase.openOrCreateDatabase(file, null);
+        SQLiteDatabase archiveBackupDb = null;
+        try {
+            archiveBackupDb = SQLiteDatabase.openOrCreateDatabase(archiveFile, null);
+            long sourceChanges = getTotalChanges(source);
+            backupDb.setVersion(source.getVersion());
+            return copySchemaAndRows(source, MAIN_SCHEMA, backupDb, sourceChanges)
+                    && copySchemaAndRows(source, PetsDbHelper.ARCHIVE_SCHEMA, archiveBackupDb, sourceChanges);
+        } finally {
+            backupDb.close();
+            if (archiveBackupDb != null) {
+                archiveBackupDb.close();
+            }
+        }
+    }
+
+    /**
+     * Copies one schema of the source, that is the main database or an attached one.
+     *
+     * @return false if the source changed during the copy.
+     */
+    private boolean copySchemaAndRows(SQLiteDatabase source, String schema, SQLiteDatabase backupDb,
+                                      long sourceChanges) {
+        List<String> tables = copySchema(source, schema, backupDb);
+        // the triggers copied with the schema fill the derived tables
+        tables.removeAll(Arrays.asList(PetsDbHelper.DERIVED_TABLES));
+        for (String table : tables) {
+            if (!copyTable(source, schema, backupDb, MAIN_SCHEMA, table,
+                    getColumns(source, schema, table), sourceChanges)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of rows inserted, updated or deleted through the connection since it
+     * was opened.
+     */
+    private static long getTotalChanges(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT total_changes()", null);
+    }
+
+    /**
+     * Runs SQLite's integrity check on the given backup file.
+     */
+    public boolean verify(File backup) {
+        if (!backup.exists()) {
+            return false;
+        }
+        SQLiteDatabase backupDb = null;
+        Cursor cursor = null;
+        try {
+            backupDb = SQLiteDatabase.openDatabase(backup.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+            cursor = backupDb.rawQuery("PRAGMA integrity_check", null);
+            boolean ok = cursor.moveToFirst() && "ok".equalsIgnoreCase(cursor.getString(0));
+            if (!ok) {
+                Log.e(LOG_TAG, "Integrity check of " + backup + " failed");
+            }
+            return ok;
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Cannot verify " + backup, e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            if (backupDb != null) {
+                backupDb.close();
+            }
+        }
+    }
+
+    /**
+     * Replaces the content of the target database and its archive with the content of the
+     * backup, in a single transaction. Only tables and columns that exist in both databases
+     * are restored.
+     * <p>
+     * Backups written before the archive was backed up have no archive file. Then the current
+     * archive is kept, without the pets that the backup has as active pets.
+     *
+     * @return true if the backup was verified and restored.
+     */
+    public boolean restore(File backup, SQLiteDatabase target) {
+        recover(backup);
+        if (!verify(backup)) {
+            return false;
+        }
+        File archiveBackup = getArchiveFile(backup);
+        boolean hasArchive = archiveBackup.exists();
+        if (hasArchive && !verify(archiveBackup)) {
+            return false;
+        }
+        SQLiteDatabase backupDb = SQLiteDatabase.openDatabase(backup.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        SQLiteDatabase archiveBackupDb = null;
+        target.beginTransaction();
+        try {
+            restoreSchema(backupDb, target, MAIN_SCHEMA);
+            if (hasArchive) {
+                archiveBackupDb = SQLiteDatabase.openDatabase(archiveBackup.getPath(), null,
+                        SQLiteDatabase.OPEN_READONLY);
+                restoreSchema(archiveBackupDb, target, PetsDbHelper.ARCHIVE_SCHEMA);
+            } else {
+                Log.w(LOG_TAG, backup + " has no archive, keeping the current archive");
+                // a pet is either active or archived, the backup decides for the pets it has
+                target.delete(PetsDbHelper.ARCHIVE_PETS_TABLE, PetEntry._ID + " IN (SELECT "
+                        + PetEntry._ID + " FROM " + MAIN_SCHEMA + "." + PetEntry.TABLE_NAME + ")", null);
+            }
+            target.setTransactionSuccessful();
+            return true;
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Restore from " + backup + " failed", e);
+            return false;
+        } finally {
+            target.endTransaction();
+            backupDb.close();
+            if (archiveBackupDb != null) {
+                archiveBackupDb.close();
+            }
+        }
+    }
+
+    /**
+     * Replaces the tables of one schema of the target with the tables of the backup.
+     */
+    private void restoreSchema(SQLiteDatabase backupDb, SQLiteDatabase target, String schema) {
+        List<String> tables = getTables(backupDb, MAIN_SCHEMA);
+        // the triggers of the target update its derived tables while the rows are restored
+        tables.removeAll(Arrays.asList(PetsDbHelper.DERIVED_TABLES));
+        for (String table : tables) {
+            List<String> columns = getColumns(target, schema, table);
+            if (columns.isEmpty()) {
+                continue;
+            }
+            columns.retainAll(getColumns(backupDb, MAIN_SCHEMA, table));
+            target.delete(schema + "." + table, null, null);
+            // the restore runs in one transaction, pausing would only hold the lock longer
+            copyTable(backupDb, MAIN_SCHEMA, target, schema, table, columns, NO_CHANGE_CHECK);
+        }
+    }
+
+    /**
+     * Recreates the tables and indices of one schema of the source in the backup.
+     *
+     * @return the names of the tables that hold data.
+     */
+    private List<String> copySchema(SQLiteDatabase source, String schema, SQLiteDatabase backupDb) {
+        // the statements don't name their schema, so they create the objects in the backup's main
+        Cursor cursor = source.rawQuery("SELECT sql FROM " + schema + ".sqlite_master"
+                + " WHERE sql IS NOT NULL AND name NOT LIKE 'sqlite_%' AND name != 'android_metadata'"
+                + " ORDER BY type = 'table' DESC", null);
+        try {
+            while (cursor.moveToNext()) {
+                backupDb.execSQL(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return getTables(source, schema);
+    }
+
+    private List<String> getTables(SQLiteDatabase db, String schema) {
+        List<String> tables = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT name FROM " + schema + ".sqlite_master WHERE type = 'table'"
+                + " AND name NOT LIKE 'sqlite_%' AND name != 'android_metadata'", null);
+        try {
+            while (cursor.moveToNext()) {
+                tables.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tables;
+    }
+
+    private List<String> getColumns(SQLiteDatabase db, String schema, String table) {
+        List<String> columns = new ArrayList<>();
+        Cursor cursor = db.rawQuery("PRAGMA " + schema + ".table_info(" + table + ")", null);
+        try {
+            int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(nameIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+
+    /**
+     * Copies the given columns of a table one page at a time, walking the rowid.
+     *
+     * @param sourceChanges the total changes of the source when the copy started, see
+     *                      getTotalChanges(), or NO_CHANGE_CHECK if the source can't change
+     *                      during the copy. Only a copy that checks pauses between pages.
+     * @return false if the source changed, the target then holds an incomplete copy.
+     */
+    private boolean copyTable(SQLiteDatabase source, String sourceSchema, SQLiteDatabase target,
+                              String targetSchema, String table, List<String> columns,
+                              long sourceChanges) {
+        String columnList = joinColumns(columns);
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+        }
+        String select = "SELECT rowid AS " + BACKUP_ROWID + ", " + columnList
+                + " FROM " + sourceSchema + "." + table + " WHERE rowid > CAST(? AS INTEGER) ORDER BY rowid LIMIT " + PAGE_ROWS;
+        SQLiteStatement insert = target.compileStatement(
+                "INSERT INTO " + targetSchema + "." + table + " (" + columnList + ") VALUES (" + placeholders + ")");
+
+        try {
+            long lastRowId = Long.MIN_VALUE;
+            int copied;
+            do {
+                copied = 0;
+                Cursor cursor = source.rawQuery(select, new String[]{String.valueOf(lastRowId)});
+                target.beginTransaction();
+                try {
+                    while (cursor.moveToNext()) {
+                        lastRowId = cursor.getLong(0);
+                        bindRow(insert, cursor);
+                        insert.executeInsert();
+                        copied++;
+                    }
+                    target.setTransactionSuccessful();
+                } finally {
+                    target.endTransaction();
+                    cursor.close();
+                }
+                if (sourceChanges != NO_CHANGE_CHECK) {
+                    if (getTotalChanges(source) != sourceChanges) {
+                        return false;
+                    }
+                    if (copied == PAGE_ROWS) {
+                        SystemClock.sleep(STEP_PAUSE_MILLIS);
+                        // a writer may have taken its turn during the pause
+                        if (getTotalChanges(source) != sourceChanges) {
+                            return false;
+                        }
+                    }
+                }
+            } while (copied == PAGE_ROWS);
+            return true;
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * Binds the current row of the cursor (skipping the rowid column) keeping the SQLite types.
+     */
+    private static void bindRow(SQLiteStatement statement, Cursor cursor) {
+        statement.clearBindings();
+        for (int column = 1; column < cursor.getColumnCount(); column++) {
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    statement.bindLong(column, cursor.getLong(column));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    statement.bindDouble(column, cursor.getDouble(column));
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    statement.bindString(column, cursor.getString(column));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    statement.bindBlob(column, cursor.getBlob(column));
+                    break;
+                default:
+                    statement.bindNull(column);
+                    break;
+            }
+        }
+    }
+
+    private static void deleteDatabaseFile(File file) {
+        file.delete();
+        new File(file.getPath() + "-journal").delete();
+    }
+
+    private static String joinColumns(List<String> columns) {
+        StringBuilder builder = new StringBuilder();
+        for (String column : columns) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(column);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * {@link ShelterDatabases} keeps one {@link PetsDbHelper} per shelter. The default shelter is
+ * stored in shelter.db, every other shelter gets its own shelter_&lt;id&gt;.db file, so that
+ * shelters can be written to and archived independently of each other.
+ */
+public final class ShelterDatabases {
+
+    private static final String SHELTER_DATABASE_PREFIX = "shelter_";
+    private static final String SHELTER_DATABASE_SUFFIX = ".db";
+
+    // shelter ids end up in file names, so only allow a safe set of characters
+    private static final Pattern SHELTER_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+
+    private static ShelterDatabases instance;
+
+    private final Context context;
+    private final Map<String, PetsDbHelper> helpers = new HashMap<>();
+
+    private ShelterDatabases(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Returns the process wide instance, so that the provider and background work share the
+     * same database connections.
+     */
+    public static synchronized ShelterDatabases getInstance(Context context) {
+        if (instance == null) {
+            instance = new ShelterDatabases(context);
+        }
+        return instance;
+    }
+
+    public static boolean isValidShelterId(String shelterId) {
+        return shelterId != null && SHELTER_ID_PATTERN.matcher(shelterId).matches();
+    }
+
+    /**
+     * Returns the name of the database file that stores the given shelter.
+     */
+    public static String getDatabaseName(String shelterId) {
+        if (PetContract.DEFAULT_SHELTER.equals(shelterId)) {
+            return PetsDbHelper.DATABASE_NAME;
+        }
+        return SHELTER_DATABASE_PREFIX + shelterId + SHELTER_DATABASE_SUFFIX;
+    }
+
+    /**
+     * Returns the helper for the given shelter, which must already have a database file.
+     * Reads and the calls of other apps go through here, so they can't create shelters.
+     */
+    public synchronized PetsDbHelper getHelper(String shelterId) {
+        if (!isValidShelterId(shelterId)) {
+            throw new IllegalArgumentException("Invalid shelter id " + shelterId);
+        }
+        if (!PetContract.DEFAULT_SHELTER.equals(shelterId)
+                && !context.getDatabasePath(getDatabaseName(shelterId)).exists()) {
+            throw new IllegalArgumentException("Unknown shelter " + shelterId);
+        }
+        return getOrCreateHelper(shelterId);
+    }
+
+    /**
+     * Returns the helper for the given shelter, and creates the shelter if it doesn't exist
+     * yet. Only for writes of this app: the database file is created when the helper first
+     * opens it, right before the write.
+     */
+    public synchronized PetsDbHelper getOrCreateHelper(String shelterId) {
+        if (!isValidShelterId(shelterId)) {
+            throw new IllegalArgumentException("Invalid shelter id " + shelterId);
+        }
+        PetsDbHelper helper = helpers.get(shelterId);
+        if (helper == null) {
+            helper = new PetsDbHelper(context, getDatabaseName(shelterId));
+            helpers.put(shelterId, helper);
+        }
+        return helper;
+    }
+
+    /**
+     * Closes the given shelter and deletes its database and archive files, for scratch
+     * shelters like {@link TraceReplayer#REPLAY_SHELTER}. The default shelter can't be deleted.
+     */
+    public synchronized void deleteShelter(String shelterId) {
+        if (!isValidShelterId(shelterId) || PetContract.DEFAULT_SHELTER.equals(shelterId)) {
+            throw new IllegalArgumentException("Cannot delete shelter " + shelterId);
+        }
+        PetsDbHelper helper = helpers.remove(shelterId);
+        if (helper != null) {
+            helper.close();
+        }
+        String databaseName = getDatabaseName(shelterId);
+        context.deleteDatabase(databaseName);
+        context.deleteDatabase(PetsDbHelper.getArchiveDatabaseName(databaseName));
+    }
+
+    /**
+     * Returns the ids of all shelters that have a database file, the default shelter first and
+     * the others in alphabetical order, so that cross-shelter results number the shelters the
+     * same way every time. The replay shelter holds synthetic pets only, so it is left out of
+     * the fan-out queries, the backups and the archiving.
+     */
+    public synchronized List<String> getShelterIds() {
+        List<String> shelterIds = new ArrayList<>();
+        shelterIds.add(PetContract.DEFAULT_SHELTER);
+        for (String name : context.databaseList()) {
+            if (name.startsWith(SHELTER_DATABASE_PREFIX) && name.endsWith(SHELTER_DATABASE_SUFFIX)) {
+                String shelterId = name.substring(SHELTER_DATABASE_PREFIX.length(),
+                        name.length() - SHELTER_DATABASE_SUFFIX.length());
+                if (isValidShelterId(shelterId) && !shelterIds.contains(shelterId)
+                        && !TraceReplayer.REPLAY_SHELTER.equals(shelterId)) {
+                    shelterIds.add(shelterId);
+                }
+            }
+        }
+        Collections.sort(shelterIds.subList(1, shelterIds.size()));
+        return shelterIds;
+    }
+}
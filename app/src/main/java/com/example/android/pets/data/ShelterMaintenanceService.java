@@ -0,0 +1,251 @@
+package com.example.android.pets.data;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.example.android.pets.R;
+
+import java.io.File;
+
+import static com.example.android.pets.data.PetContract.DraftEntry;
+
+/**
+ * {@link ShelterMaintenanceService} runs maintenance work on the shelter databases in the
+ * background: scheduled and on-demand backups, restoring from the last backup, and moving
+ * cold pets to the archive, which also deletes abandoned drafts.
+ */
+public class ShelterMaintenanceService extends IntentService {
+
+    public static final String LOG_TAG = ShelterMaintenanceService.class.getSimpleName();
+
+    public static final String ACTION_BACKUP = "com.example.android.pets.action.BACKUP";
+    public static final String ACTION_RESTORE = "com.example.android.pets.action.RESTORE";
+    public static final String ACTION_ARCHIVE = "com.example.android.pets.action.ARCHIVE";
+    public static final String ACTION_GENERATE_PETS = "com.example.android.pets.action.GENERATE_PETS";
+
+    public static final String EXTRA_PET_COUNT = "pet_count";
+    public static final String EXTRA_SEED = "seed";
+
+    /**
+     * Extra set on intents started by the user, who gets a toast with the result
+     */
+    private static final String EXTRA_ON_DEMAND = "on_demand";
+
+    private static final String BACKUP_DIRECTORY = "backups";
+
+    /**
+     * Delay after which a failed backup is tried again, for instance once the user stopped
+     * editing a pet
+     */
+    private static final long BACKUP_RETRY_MILLIS = AlarmManager.INTERVAL_HALF_HOUR;
+
+    /**
+     * Request code of the retry, which must not replace the daily backup alarm
+     */
+    private static final int BACKUP_RETRY_REQUEST = 1;
+
+    /**
+     * Age after which the draft of a new pet counts as abandoned
+     */
+    private static final long ABANDONED_DRAFT_MILLIS = 7 * AlarmManager.INTERVAL_DAY;
+
+    private Handler mainHandler;
+
+    public ShelterMaintenanceService() {
+        super(LOG_TAG);
+    }
+
+    /**
+     * Starts a backup of all shelters right away.
+     */
+    public static void startBackup(Context context) {
+        context.startService(new Intent(context, ShelterMaintenanceService.class)
+                .setAction(ACTION_BACKUP)
+                .putExtra(EXTRA_ON_DEMAND, true));
+    }
+
+    /**
+     * Restores all shelters from their last backup.
+     */
+    public static void startRestore(Context context) {
+        context.startService(new Intent(context, ShelterMaintenanceService.class)
+                .setAction(ACTION_RESTORE)
+                .putExtra(EXTRA_ON_DEMAND, true));
+    }
+
+    /**
+     * Inserts the given number of synthetic pets into the default shelter, see
+     * {@link PetLoadGenerator}. The same seed always generates the same pets.
+     */
+    public static void startGeneratePets(Context context, int count, long seed) {
+        context.startService(new Intent(context, ShelterMaintenanceService.class)
+                .setAction(ACTION_GENERATE_PETS)
+                .putExtra(EXTRA_PET_COUNT, count)
+                .putExtra(EXTRA_SEED, seed)
+                .putExtra(EXTRA_ON_DEMAND, true));
+    }
+
+    /**
+     * Schedules a daily backup of all shelters, unless one is already scheduled.
+     */
+    public static void scheduleBackups(Context context) {
+        scheduleDaily(context, ACTION_BACKUP);
+    }
+
+    /**
+     * Schedules moving the cold pets to the archive once a day, unless it is already scheduled.
+     */
+    public static void scheduleArchiving(Context context) {
+        scheduleDaily(context, ACTION_ARCHIVE);
+    }
+
+    private static void scheduleDaily(Context context, String action) {
+        Intent intent = new Intent(context, ShelterMaintenanceService.class).setAction(action);
+        if (PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        PendingIntent pendingIntent = PendingIntent.getService(context, 0, intent, 0);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_DAY,
+                AlarmManager.INTERVAL_DAY,
+                pendingIntent);
+    }
+
+    /**
+     * Tries a failed backup again after {@link #BACKUP_RETRY_MILLIS}, replacing any retry that
+     * is already scheduled.
+     */
+    private static void scheduleBackupRetry(Context context) {
+        Intent intent = new Intent(context, ShelterMaintenanceService.class).setAction(ACTION_BACKUP);
+        PendingIntent pendingIntent = PendingIntent.getService(context, BACKUP_RETRY_REQUEST, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + BACKUP_RETRY_MILLIS, pendingIntent);
+    }
+
+    /**
+     * Returns the file that holds the backup of the given shelter.
+     */
+    public static File getBackupFile(Context context, String shelterId) {
+        File directory = new File(context.getFilesDir(), BACKUP_DIRECTORY);
+        return new File(directory, ShelterDatabases.getDatabaseName(shelterId));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null) {
+            return;
+        }
+        boolean onDemand = intent.getBooleanExtra(EXTRA_ON_DEMAND, false);
+        if (ACTION_BACKUP.equals(intent.getAction())) {
+            boolean success = backupAll();
+            if (!success) {
+                scheduleBackupRetry(this);
+            }
+            if (onDemand) {
+                showToast(success ? R.string.backup_successful : R.string.backup_failed);
+            }
+        } else if (ACTION_RESTORE.equals(intent.getAction())) {
+            boolean success = restoreAll();
+            if (onDemand) {
+                showToast(success ? R.string.restore_successful : R.string.restore_failed);
+            }
+        } else if (ACTION_ARCHIVE.equals(intent.getAction())) {
+            archiveAll();
+        } else if (ACTION_GENERATE_PETS.equals(intent.getAction())) {
+            int count = intent.getIntExtra(EXTRA_PET_COUNT, 0);
+            int inserted = new PetLoadGenerator(getContentResolver()).generate(PetContract.PetEntry.CONTENT_URI,
+                    count, intent.getLongExtra(EXTRA_SEED, PetLoadGenerator.DEFAULT_SEED));
+            if (onDemand) {
+                showToast(inserted == count ? R.string.generate_pets_successful : R.string.generate_pets_failed);
+            }
+        }
+    }
+
+    private void archiveAll() {
+        ShelterDatabases shelterDatabases = ShelterDatabases.getInstance(this);
+        ArchiveMover archiveMover = new ArchiveMover();
+        int moved = 0;
+        for (String shelterId : shelterDatabases.getShelterIds()) {
+            moved += archiveMover.moveColdPets(shelterDatabases.getHelper(shelterId).getWritableDatabase());
+        }
+        if (moved > 0) {
+            // Notify all listeners that the active pets of the shelters have changed
+            getContentResolver().notifyChange(PetContract.BASE_CONTENT_URI, null);
+        }
+        deleteAbandonedDrafts(shelterDatabases.getHelper(PetContract.DEFAULT_SHELTER).getWritableDatabase());
+    }
+
+    /**
+     * Deletes the drafts of new pets whose editor never came back, see
+     * {@link DraftEntry#newPetDraftId()}. Drafts of saved pets are kept, the next editor of
+     * the pet restores them.
+     */
+    private static void deleteAbandonedDrafts(SQLiteDatabase db) {
+        long cutoff = System.currentTimeMillis() - ABANDONED_DRAFT_MILLIS;
+        int deleted = db.delete(DraftEntry.TABLE_NAME,
+                DraftEntry.COLUMN_PET_ID + " < 0 AND " + DraftEntry.COLUMN_LAST_MODIFIED + " < ?",
+                new String[]{String.valueOf(cutoff)});
+        Log.d(LOG_TAG, "Deleted " + deleted + " abandoned drafts");
+    }
+
+    private boolean backupAll() {
+        ShelterDatabases shelterDatabases = ShelterDatabases.getInstance(this);
+        ShelterBackup shelterBackup = new ShelterBackup();
+        boolean success = true;
+        for (String shelterId : shelterDatabases.getShelterIds()) {
+            PetsDbHelper helper = shelterDatabases.getHelper(shelterId);
+            if (!shelterBackup.backup(helper.getReadableDatabase(), getBackupFile(this, shelterId))) {
+                Log.e(LOG_TAG, "Backup of shelter " + shelterId + " failed");
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    private boolean restoreAll() {
+        ShelterDatabases shelterDatabases = ShelterDatabases.getInstance(this);
+        ShelterBackup shelterBackup = new ShelterBackup();
+        boolean success = true;
+        for (String shelterId : shelterDatabases.getShelterIds()) {
+            File backup = getBackupFile(this, shelterId);
+            if (!shelterBackup.exists(backup)) {
+                continue;
+            }
+            PetsDbHelper helper = shelterDatabases.getHelper(shelterId);
+            if (!shelterBackup.restore(backup, helper.getWritableDatabase())) {
+                Log.e(LOG_TAG, "Restore of shelter " + shelterId + " failed");
+                success = false;
+            }
+        }
+        // Notify all listeners that the data of every shelter has changed
+        getContentResolver().notifyChange(PetContract.BASE_CONTENT_URI, null);
+        return success;
+    }
+
+    private void showToast(final int messageId) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(getApplicationContext(), messageId, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+}
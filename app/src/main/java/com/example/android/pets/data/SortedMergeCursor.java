@@ -0,0 +1,381 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link SortedMergeCursor} merges several cursors that are each sorted by the same sort order
+ * into a single cursor sorted by that order (a k-way merge). Unlike
+ * {@link android.database.MergeCursor}, which simply appends the cursors, the rows of the
+ * different cursors are interleaved.
+ * <p>
+ * The merge order is computed once when the cursor is created, after that moving to any
+ * position takes constant time.
+ * <p>
+ * The same _id can occur in several of the cursors, so the merged cursor reports
+ * (_id &lt;&lt; {@link #CURSOR_BITS}) | index of the cursor instead, which keeps the ids unique
+ * for list adapters. The merged cursor is ordered by _id the same way as the cursors are.
+ */
+public class SortedMergeCursor extends AbstractCursor {
+
+    /**
+     * Number of low bits of the merged _id that hold the index of the cursor
+     */
+    public static final int CURSOR_BITS = 16;
+
+    // one term of an ORDER BY clause: a plain column, optionally with a collation and direction
+    private static final Pattern SORT_TERM_PATTERN = Pattern.compile(
+            "([A-Za-z_][A-Za-z0-9_]*)(?:\\s+COLLATE\\s+(BINARY|NOCASE))?(?:\\s+(ASC|DESC))?",
+            Pattern.CASE_INSENSITIVE);
+
+    private final Cursor[] cursors;
+    private final String[] columnNames;
+    private final int idColumn;
+
+    // for each position of the merged cursor: the cursor and the row within that cursor
+    private final int[] cursorIndices;
+    private final int[] rowIndices;
+
+    private Cursor currentCursor;
+
+    /**
+     * @param cursors   The cursors to merge, each sorted by sortOrder and with the same columns.
+     * @param sortOrder The ORDER BY clause the cursors were queried with, may be null.
+     */
+    public SortedMergeCursor(Cursor[] cursors, String sortOrder) {
+        if (cursors.length > 1 << CURSOR_BITS) {
+            throw new IllegalArgumentException("Cannot merge " + cursors.length + " cursors");
+        }
+        this.cursors = cursors;
+        this.columnNames = cursors.length > 0 ? cursors[0].getColumnNames() : new String[0];
+        this.idColumn = Arrays.asList(columnNames).indexOf(BaseColumns._ID);
+
+        int count = 0;
+        for (Cursor cursor : cursors) {
+            count += cursor.getCount();
+        }
+        cursorIndices = new int[count];
+        rowIndices = new int[count];
+
+        merge(parseSortOrder(sortOrder));
+    }
+
+    /**
+     * Runs the k-way merge and records the resulting order.
+     */
+    private void merge(final List<SortKey> sortKeys) {
+        Comparator<Integer> comparator = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer left, Integer right) {
+                for (SortKey sortKey : sortKeys) {
+                    int result = sortKey.compare(left, right);
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+                // keep the merge stable: rows of earlier cursors come first
+                return left - right;
+            }
+        };
+
+        PriorityQueue<Integer> heap = new PriorityQueue<>(Math.max(1, cursors.length), comparator);
+        for (int i = 0; i < cursors.length; i++) {
+            if (cursors[i].moveToFirst()) {
+                heap.add(i);
+            }
+        }
+
+        int position = 0;
+        while (!heap.isEmpty()) {
+            int index = heap.poll();
+            cursorIndices[position] = index;
+            rowIndices[position] = cursors[index].getPosition();
+            position++;
+            if (cursors[index].moveToNext()) {
+                heap.add(index);
+            }
+        }
+    }
+
+    /**
+     * Checks that the merge can follow an ORDER BY clause: every term has to be a plain column,
+     * optionally followed by COLLATE BINARY or COLLATE NOCASE, and ASC or DESC. Qualified
+     * columns, expressions and other collations can't be compared outside of SQLite.
+     *
+     * @throws IllegalArgumentException if a term is not supported.
+     */
+    public static void checkSortOrder(String sortOrder) {
+        if (TextUtils.isEmpty(sortOrder)) {
+            return;
+        }
+        for (String term : sortOrder.split(",", -1)) {
+            matchSortTerm(term);
+        }
+    }
+
+    private static Matcher matchSortTerm(String term) {
+        Matcher matcher = SORT_TERM_PATTERN.matcher(term.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Unsupported sort term for a merged query: " + term);
+        }
+        return matcher;
+    }
+
+    /**
+     * Parses an ORDER BY clause like "name COLLATE NOCASE ASC, weight DESC".
+     *
+     * @throws IllegalArgumentException if a term is not supported, see
+     *                                  {@link #checkSortOrder(String)}, or its column is not
+     *                                  part of the cursors.
+     */
+    private List<SortKey> parseSortOrder(String sortOrder) {
+        List<SortKey> sortKeys = new ArrayList<>();
+        if (TextUtils.isEmpty(sortOrder)) {
+            return sortKeys;
+        }
+        for (String term : sortOrder.split(",", -1)) {
+            Matcher matcher = matchSortTerm(term);
+            String column = matcher.group(1);
+            boolean ignoreCase = "NOCASE".equalsIgnoreCase(matcher.group(2));
+            boolean descending = "DESC".equalsIgnoreCase(matcher.group(3));
+            int[] columnIndices = new int[cursors.length];
+            for (int i = 0; i < cursors.length; i++) {
+                columnIndices[i] = cursors[i].getColumnIndex(column);
+                // SQLite can sort by a column that is not selected, the merge can't
+                if (columnIndices[i] == -1) {
+                    throw new IllegalArgumentException("Sort column " + column
+                            + " is not part of the projection");
+                }
+            }
+            sortKeys.add(new SortKey(columnIndices, descending, ignoreCase));
+        }
+        return sortKeys;
+    }
+
+    @Override
+    public int getCount() {
+        return cursorIndices.length;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        currentCursor = cursors[cursorIndices[newPosition]];
+        return currentCursor.moveToPosition(rowIndices[newPosition]);
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    /**
+     * Returns the _id of the current row, made unique across the cursors.
+     */
+    private long getMergedId() {
+        return (currentCursor.getLong(idColumn) << CURSOR_BITS) | cursorIndices[getPosition()];
+    }
+
+    @Override
+    public String getString(int column) {
+        if (column == idColumn) {
+            return Long.toString(getMergedId());
+        }
+        return currentCursor.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        if (column == idColumn) {
+            return (short) getMergedId();
+        }
+        return currentCursor.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        if (column == idColumn) {
+            return (int) getMergedId();
+        }
+        return currentCursor.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        if (column == idColumn) {
+            return getMergedId();
+        }
+        return currentCursor.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        if (column == idColumn) {
+            return getMergedId();
+        }
+        return currentCursor.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        if (column == idColumn) {
+            return getMergedId();
+        }
+        return currentCursor.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return currentCursor.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return currentCursor.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return currentCursor.isNull(column);
+    }
+
+    @Override
+    public void deactivate() {
+        for (Cursor cursor : cursors) {
+            cursor.deactivate();
+        }
+        super.deactivate();
+    }
+
+    @Override
+    public void close() {
+        for (Cursor cursor : cursors) {
+            cursor.close();
+        }
+        super.close();
+    }
+
+    /**
+     * One term of the ORDER BY clause. Values are compared the way SQLite orders them:
+     * NULL first, then numbers, then text, then blobs.
+     * <p>
+     * Text is compared like SQLite's BINARY collation, byte by byte in UTF-8, which is the
+     * order of the code points. NOCASE only folds the ASCII letters, like SQLite does; that's
+     * not what String.compareTo() (UTF-16 units) or compareToIgnoreCase() (all of Unicode) do.
+     */
+    private class SortKey {
+
+        private final int[] columnIndices;
+        private final boolean descending;
+        private final boolean ignoreCase;
+
+        SortKey(int[] columnIndices, boolean descending, boolean ignoreCase) {
+            this.columnIndices = columnIndices;
+            this.descending = descending;
+            this.ignoreCase = ignoreCase;
+        }
+
+        /**
+         * Compares the current rows of the cursors with the given indices.
+         */
+        int compare(int left, int right) {
+            int result = compareValues(cursors[left], columnIndices[left],
+                    cursors[right], columnIndices[right]);
+            return descending ? -result : result;
+        }
+
+        private int compareValues(Cursor left, int leftColumn, Cursor right, int rightColumn) {
+            int leftRank = typeRank(left.getType(leftColumn));
+            int rightRank = typeRank(right.getType(rightColumn));
+            if (leftRank != rightRank) {
+                return leftRank - rightRank;
+            }
+            switch (left.getType(leftColumn)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                case Cursor.FIELD_TYPE_FLOAT:
+                    if (left.getType(leftColumn) == Cursor.FIELD_TYPE_INTEGER
+                            && right.getType(rightColumn) == Cursor.FIELD_TYPE_INTEGER) {
+                        long leftLong = left.getLong(leftColumn);
+                        long rightLong = right.getLong(rightColumn);
+                        return leftLong < rightLong ? -1 : (leftLong == rightLong ? 0 : 1);
+                    }
+                    return Double.compare(left.getDouble(leftColumn), right.getDouble(rightColumn));
+                case Cursor.FIELD_TYPE_STRING:
+                    return compareText(left.getString(leftColumn), right.getString(rightColumn), ignoreCase);
+                case Cursor.FIELD_TYPE_BLOB:
+                    return compareBlobs(left.getBlob(leftColumn), right.getBlob(rightColumn));
+                default:
+                    // NULLs are equal to each other
+                    return 0;
+            }
+        }
+
+        private int typeRank(int type) {
+            switch (type) {
+                case Cursor.FIELD_TYPE_NULL:
+                    return 0;
+                case Cursor.FIELD_TYPE_INTEGER:
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return 1;
+                case Cursor.FIELD_TYPE_STRING:
+                    return 2;
+                default:
+                    return 3;
+            }
+        }
+    }
+
+    /**
+     * Compares text in code point order, which is the byte order of UTF-8, optionally folding
+     * A-Z to a-z first.
+     */
+    static int compareText(String left, String right, boolean ignoreCase) {
+        int i = 0;
+        int j = 0;
+        while (i < left.length() && j < right.length()) {
+            int leftCodePoint = left.codePointAt(i);
+            int rightCodePoint = right.codePointAt(j);
+            i += Character.charCount(leftCodePoint);
+            j += Character.charCount(rightCodePoint);
+            if (ignoreCase) {
+                leftCodePoint = foldAscii(leftCodePoint);
+                rightCodePoint = foldAscii(rightCodePoint);
+            }
+            if (leftCodePoint != rightCodePoint) {
+                return leftCodePoint < rightCodePoint ? -1 : 1;
+            }
+        }
+        // the shorter text comes first
+        if (i < left.length()) {
+            return 1;
+        }
+        return j < right.length() ? -1 : 0;
+    }
+
+    private static int foldAscii(int codePoint) {
+        return codePoint >= 'A' && codePoint <= 'Z' ? codePoint + ('a' - 'A') : codePoint;
+    }
+
+    /**
+     * Compares blobs like memcmp(), the shorter blob first if one is a prefix of the other.
+     */
+    static int compareBlobs(byte[] left, byte[] right) {
+        int length = Math.min(left.length, right.length);
+        for (int i = 0; i < length; i++) {
+            int result = (left[i] & 0xff) - (right[i] & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return left.length - right.length;
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link StorageBenchmark} compares the {@link StorageProfile}s on this device. For debugging
+ * purposes only, don't run it on the main thread.
+ * <p>
+ * Every profile gets a scratch database of its own with the same synthetic pets, which is
+ * opened again before it is measured, like a shelter database after a restart of the app.
+ * The pets of the shelters are never touched.
+ */
+public class StorageBenchmark {
+
+    public static final String LOG_TAG = StorageBenchmark.class.getSimpleName();
+
+    private static final int PETS = 20000;
+    private static final int ITERATIONS = 5;
+    private static final int LOOKUPS = 200;
+
+    private final Context context;
+
+    public StorageBenchmark(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * One of the operations measured by the benchmark.
+     */
+    private interface Operation {
+        void run(SQLiteDatabase db);
+    }
+
+    /**
+     * Runs the benchmark for every profile.
+     *
+     * @return a report with the median time of each operation per profile.
+     */
+    public String run() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%d pets, median of %d runs in ms\n", PETS, ITERATIONS));
+        report.append("device profile: ").append(StorageProfile.select(context)).append('\n');
+        for (StorageProfile profile : StorageProfile.PROFILES) {
+            String name = "storage_benchmark_" + profile.name + ".db";
+            context.deleteDatabase(name);
+            File file = context.getDatabasePath(name);
+            file.getParentFile().mkdirs();
+            try {
+                fill(file, profile);
+                appendProfile(report, file, profile);
+            } finally {
+                context.deleteDatabase(name);
+            }
+        }
+        Log.d(LOG_TAG, report.toString());
+        return report.toString();
+    }
+
+    /**
+     * Creates the database of a profile, with the profile's page size, and fills it.
+     */
+    private static void fill(File file, StorageProfile profile) {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            profile.apply(db, true);
+            db.execSQL("CREATE TABLE " + PetEntry.TABLE_NAME + " ("
+                    + PetEntry._ID + " INTEGER PRIMARY KEY, "
+                    + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
+                    + PetEntry.COLUMN_PET_BREED + " TEXT, "
+                    + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
+                    + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL)");
+            db.execSQL("CREATE INDEX pets_name ON " + PetEntry.TABLE_NAME
+                    + " (" + PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE)");
+
+            PetLoadGenerator.Distributions distributions = new PetLoadGenerator.Distributions();
+            Random random = new Random(PetLoadGenerator.DEFAULT_SEED);
+            SQLiteStatement insert = db.compileStatement("INSERT INTO " + PetEntry.TABLE_NAME + " ("
+                    + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ", "
+                    + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)");
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < PETS; i++) {
+                    // unique names, so that the name index is as large as in a big shelter
+                    insert.bindString(1, distributions.names[random.nextInt(distributions.names.length)] + " " + i);
+                    insert.bindString(2, distributions.breeds[random.nextInt(distributions.breeds.length)]);
+                    insert.bindLong(3, random.nextInt(3));
+                    insert.bindLong(4, random.nextInt(40));
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void appendProfile(StringBuilder report, File file, StorageProfile profile) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        try {
+            profile.apply(db, false);
+            report.append(String.format(Locale.US, "%s (page %d, mmap %d kB):",
+                    profile.name,
+                    StorageProfile.queryPragma(db, "page_size"),
+                    StorageProfile.queryPragma(db, "mmap_size") / 1024));
+
+            // a scan that SQLite answers without copying rows into a cursor window
+            report.append(String.format(Locale.US, " aggregate %.1f,", measure(db, new Operation() {
+                @Override
+                public void run(SQLiteDatabase db) {
+                    Cursor cursor = db.rawQuery("SELECT " + PetEntry.COLUMN_PET_GENDER
+                            + ", AVG(" + PetEntry.COLUMN_PET_WEIGHT + "), MAX(LENGTH(" + PetEntry.COLUMN_PET_BREED + "))"
+                            + " FROM " + PetEntry.TABLE_NAME + " GROUP BY " + PetEntry.COLUMN_PET_GENDER, null);
+                    readAll(cursor);
+                }
+            })));
+            // a scan that reads every row, like a catalog of all pets
+            report.append(String.format(Locale.US, " full scan %.1f,", measure(db, new Operation() {
+                @Override
+                public void run(SQLiteDatabase db) {
+                    Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID,
+                            PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED}, null, null, null, null, null);
+                    readAll(cursor);
+                }
+            })));
+            // a sort without an index, which uses the temp store
+            report.append(String.format(Locale.US, " sort %.1f,", measure(db, new Operation() {
+                @Override
+                public void run(SQLiteDatabase db) {
+                    Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID},
+                            null, null, null, null, PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_WEIGHT);
+                    readAll(cursor);
+                }
+            })));
+            // random lookups through the name index
+            final Random random = new Random(PetLoadGenerator.DEFAULT_SEED);
+            final PetLoadGenerator.Distributions distributions = new PetLoadGenerator.Distributions();
+            report.append(String.format(Locale.US, " %d lookups %.1f\n", LOOKUPS, measure(db, new Operation() {
+                @Override
+                public void run(SQLiteDatabase db) {
+                    for (int i = 0; i < LOOKUPS; i++) {
+                        String name = distributions.names[random.nextInt(distributions.names.length)]
+                                + " " + random.nextInt(PETS);
+                        Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID},
+                                PetEntry.COLUMN_PET_NAME + " = ? COLLATE NOCASE", new String[]{name},
+                                null, null, null);
+                        readAll(cursor);
+                    }
+                }
+            })));
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void readAll(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the median time of the operation in milliseconds. The first run warms up the
+     * caches and is not counted.
+     */
+    private static double measure(SQLiteDatabase db, Operation operation) {
+        operation.run(db);
+        long[] nanos = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            operation.run(db);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos[ITERATIONS / 2] / 1e6;
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.android.pets.data;
+
+import android.annotation.SuppressLint;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * {@link StorageProfile} tunes SQLite for the memory of the device: how much of the database
+ * is cached, how much of it is memory-mapped, the page size of new databases and where
+ * temporary tables and sorts are kept.
+ * <p>
+ * Memory-mapped reads come straight from the page cache of the kernel, without copying every
+ * page into SQLite's own cache, which makes large scans cheaper where memory allows. SQLite
+ * versions without memory-mapped I/O ignore the setting, so the diagnostics report what is
+ * actually in effect, see {@link #getDiagnostics(SQLiteDatabase)}.
+ */
+public final class StorageProfile {
+
+    public static final String LOG_TAG = StorageProfile.class.getSimpleName();
+
+    // values of PRAGMA temp_store
+    private static final int TEMP_STORE_FILE = 1;
+    private static final int TEMP_STORE_MEMORY = 2;
+
+    /**
+     * Device RAM up to which a device counts as low on memory
+     */
+    private static final long LOW_TOTAL_MEMORY = 1024L * 1024 * 1024;
+
+    /**
+     * Device RAM from which a device counts as having plenty of memory. The RAM the kernel
+     * reports is a bit less than what the device has, so a 4 GiB device ends up above this.
+     */
+    private static final long LARGE_TOTAL_MEMORY = 3584L * 1024 * 1024;
+
+    /**
+     * Memory class, in MB, up to which a device counts as low on memory. Only used below
+     * API 16, where the device RAM isn't known.
+     */
+    private static final int LOW_MEMORY_CLASS = 64;
+
+    /**
+     * Memory class, in MB, from which a device counts as having plenty of memory. Only used
+     * below API 16, where the device RAM isn't known.
+     */
+    private static final int LARGE_MEMORY_CLASS = 256;
+
+    /**
+     * Small cache, no memory mapping and temporary data on disk, for devices with up to 1 GiB
+     * of RAM and the ones that declare themselves low-RAM
+     */
+    public static final StorageProfile LOW_RAM =
+            new StorageProfile("low_ram", 4096, 512, 0, TEMP_STORE_FILE);
+
+    /**
+     * Moderate cache and memory mapping, for devices between the other two profiles
+     */
+    public static final StorageProfile BALANCED =
+            new StorageProfile("balanced", 4096, 2048, 16 * 1024 * 1024, TEMP_STORE_MEMORY);
+
+    /**
+     * Large cache and most of a large shelter memory-mapped, for devices with 4 GiB of RAM
+     * or more
+     */
+    public static final StorageProfile LARGE =
+            new StorageProfile("large", 8192, 8192, 128 * 1024 * 1024, TEMP_STORE_MEMORY);
+
+    public static final StorageProfile[] PROFILES = {LOW_RAM, BALANCED, LARGE};
+
+    public final String name;
+    public final int pageSize;
+    public final int cacheSizeKib;
+    public final long mmapSize;
+    public final int tempStore;
+
+    private StorageProfile(String name, int pageSize, int cacheSizeKib, long mmapSize, int tempStore) {
+        this.name = name;
+        this.pageSize = pageSize;
+        this.cacheSizeKib = cacheSizeKib;
+        this.mmapSize = mmapSize;
+        this.tempStore = tempStore;
+    }
+
+    /**
+     * Returns the profile for the memory of this device. SQLite's cache and memory mapping
+     * live outside of the Java heap, so the profile follows the RAM of the device rather than
+     * the heap limit of the app, which is all that is known below API 16.
+     */
+    @SuppressLint("NewApi")
+    public static StorageProfile select(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        // low-RAM devices can only be recognized as such from API 19 on
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && activityManager.isLowRamDevice()) {
+            return LOW_RAM;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+            activityManager.getMemoryInfo(memoryInfo);
+            if (memoryInfo.totalMem <= LOW_TOTAL_MEMORY) {
+                return LOW_RAM;
+            } else if (memoryInfo.totalMem >= LARGE_TOTAL_MEMORY) {
+                return LARGE;
+            }
+            return BALANCED;
+        }
+        int memoryClass = activityManager.getMemoryClass();
+        if (memoryClass <= LOW_MEMORY_CLASS) {
+            return LOW_RAM;
+        } else if (memoryClass >= LARGE_MEMORY_CLASS) {
+            return LARGE;
+        }
+        return BALANCED;
+    }
+
+    /**
+     * Applies the profile to the connection. The settings only last as long as the
+     * connection, so apply them every time the database is opened, before other databases
+     * are attached, which then inherit the memory mapping.
+     *
+     * @param created true if the database was just created, only then the page size can be
+     *                changed without rewriting the whole database.
+     */
+    public void apply(SQLiteDatabase db, boolean created) {
+        if (created && queryPragma(db, "page_size") != pageSize) {
+            // the database already has a few pages, for instance for android_metadata,
+            // so the new page size only takes effect with a vacuum, which is cheap here
+            pragma(db, "page_size = " + pageSize);
+            db.execSQL("VACUUM");
+        }
+        // a negative cache size is in KiB instead of pages
+        pragma(db, "cache_size = -" + cacheSizeKib);
+        pragma(db, "mmap_size = " + mmapSize);
+        pragma(db, "temp_store = " + tempStore);
+        Log.d(LOG_TAG, "Applied the " + name + " profile to " + db.getPath());
+    }
+
+    /**
+     * Returns the storage settings in effect for the connection, in the diagnostics extras of
+     * {@link PetContract#METHOD_DIAGNOSTICS}.
+     */
+    public Bundle getDiagnostics(SQLiteDatabase db) {
+        Bundle diagnostics = new Bundle();
+        diagnostics.putString(PetContract.EXTRA_RESULT, name);
+        diagnostics.putLong(PetContract.EXTRA_PAGE_SIZE, queryPragma(db, "page_size"));
+        diagnostics.putLong(PetContract.EXTRA_CACHE_SIZE, queryPragma(db, "cache_size"));
+        diagnostics.putLong(PetContract.EXTRA_MMAP_SIZE, queryPragma(db, "mmap_size"));
+        diagnostics.putLong(PetContract.EXTRA_TEMP_STORE, queryPragma(db, "temp_store"));
+        return diagnostics;
+    }
+
+    /**
+     * Returns the value of a pragma, or 0 if this SQLite version doesn't know it.
+     */
+    static long queryPragma(SQLiteDatabase db, String name) {
+        Cursor cursor = db.rawQuery("PRAGMA " + name, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Sets a pragma. Some pragmas answer with their new value, which execSQL() doesn't allow.
+     */
+    private static void pragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
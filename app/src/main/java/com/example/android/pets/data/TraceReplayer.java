@@ -0,0 +1,393 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link TraceReplayer} replays a trace recorded by {@link ProviderTrace} and reports the
+ * throughput and the latency of the replayed calls, so that builds can be compared on the
+ * real mix of calls. For debugging purposes only, don't run it on the main thread.
+ * <p>
+ * The calls are replayed through the provider against the {@link #REPLAY_SHELTER} shelter,
+ * which is emptied and filled with synthetic pets first, so the pets of the user are never
+ * touched. The replay shelter is deleted once the replay is done. Ids, selection arguments and written values are not part of the trace, they are
+ * drawn from the synthetic pets. Routes that only exist for the default shelter can't be
+ * redirected and are skipped. The calls run one after another, as fast as possible.
+ */
+public class TraceReplayer {
+
+    public static final String LOG_TAG = TraceReplayer.class.getSimpleName();
+
+    /**
+     * The shelter the calls are replayed against. Calls to it are not recorded.
+     */
+    public static final String REPLAY_SHELTER = "replay";
+
+    /**
+     * Number of synthetic pets in the replay shelter before the replay starts
+     */
+    private static final int SEED_PETS = 1000;
+
+    private static final int MAX_WEIGHT = 30;
+
+    private static final String[] OPERATION_NAMES =
+            {null, "query", "insert", "bulk insert", "update", "delete", "call", "batch"};
+
+    private final Context context;
+    private final ContentResolver contentResolver;
+    private final Uri replayPetsUri = PetEntry.buildShelterUri(REPLAY_SHELTER);
+    private final PetLoadGenerator.Distributions distributions = new PetLoadGenerator.Distributions();
+    private final Random random = new Random(PetLoadGenerator.DEFAULT_SEED);
+    private long[] petIds;
+
+    public TraceReplayer(Context context) {
+        this.context = context.getApplicationContext();
+        this.contentResolver = this.context.getContentResolver();
+    }
+
+    /**
+     * Returns true if the URI belongs to the replay shelter.
+     */
+    public static boolean isReplayUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        return segments.size() > 1 && PetContract.PATH_SHELTERS.equals(segments.get(0))
+                && REPLAY_SHELTER.equals(segments.get(1));
+    }
+
+    /**
+     * Latencies of the replayed calls of one operation.
+     */
+    private static class Stats {
+        long[] replayedNanos = new long[64];
+        long[] recordedMicros = new long[64];
+        int count;
+        int skipped;
+        int failed;
+
+        void add(long nanos, long recorded) {
+            if (count == replayedNanos.length) {
+                replayedNanos = Arrays.copyOf(replayedNanos, count * 2);
+                recordedMicros = Arrays.copyOf(recordedMicros, count * 2);
+            }
+            replayedNanos[count] = nanos;
+            recordedMicros[count] = recorded;
+            count++;
+        }
+    }
+
+    /**
+     * Replays the given trace.
+     *
+     * @return a report with the throughput and the latencies of every operation.
+     */
+    public String replay(File traceFile) throws IOException {
+        try {
+            prepareShelter();
+            return replayCalls(traceFile);
+        } finally {
+            // the synthetic pets must not show up next to the real shelters
+            ShelterDatabases.getInstance(context).deleteShelter(REPLAY_SHELTER);
+        }
+    }
+
+    private String replayCalls(File traceFile) throws IOException {
+        Stats[] stats = new Stats[OPERATION_NAMES.length];
+        for (int i = 1; i < stats.length; i++) {
+            stats[i] = new Stats();
+        }
+        ArrayList<ContentProviderOperation> batch = new ArrayList<>();
+        long replayNanos = 0;
+        int replayed = 0;
+
+        ProviderTrace.Reader reader = new ProviderTrace.Reader(traceFile);
+        try {
+            ProviderTrace.Record record;
+            while ((record = reader.next()) != null) {
+                if (record.operation < 1 || record.operation >= stats.length) {
+                    throw new IOException("Unknown operation " + record.operation);
+                }
+                Stats operationStats = stats[record.operation];
+                if ((record.flags & ProviderTrace.FLAG_IN_BATCH) != 0) {
+                    // collected until the record of the batch itself
+                    ContentProviderOperation operation = toBatchOperation(record);
+                    if (operation != null) {
+                        batch.add(operation);
+                    }
+                    continue;
+                }
+                long start = System.nanoTime();
+                try {
+                    if (!replay(record, batch)) {
+                        operationStats.skipped++;
+                        continue;
+                    }
+                    long nanos = System.nanoTime() - start;
+                    operationStats.add(nanos, record.durationMicros);
+                    replayNanos += nanos;
+                    replayed++;
+                } catch (RuntimeException | RemoteException | OperationApplicationException e) {
+                    // the synthetic arguments don't always fit, for instance a stale version
+                    operationStats.failed++;
+                    Log.d(LOG_TAG, "Replay of " + record.pattern + " failed", e);
+                } finally {
+                    if (record.operation == ProviderTrace.OP_APPLY_BATCH) {
+                        batch = new ArrayList<>();
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%d calls in %d ms, %.0f calls/s\n",
+                replayed, replayNanos / 1000000,
+                replayNanos == 0 ? 0.0 : replayed * 1e9 / replayNanos));
+        report.append("latency in µs: p50 / p90 / p99 (recorded p50)\n");
+        for (int i = 1; i < stats.length; i++) {
+            appendStats(report, OPERATION_NAMES[i], stats[i]);
+        }
+        Log.d(LOG_TAG, report.toString());
+        return report.toString();
+    }
+
+    /**
+     * Empties the replay shelter and fills it with synthetic pets.
+     */
+    private void prepareShelter() {
+        contentResolver.delete(replayPetsUri, null, null);
+        new PetLoadGenerator(contentResolver, distributions).generate(replayPetsUri, SEED_PETS,
+                PetLoadGenerator.DEFAULT_SEED);
+        petIds = new long[0];
+        Cursor cursor = contentResolver.query(replayPetsUri, new String[]{PetEntry._ID}, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            petIds = new long[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                petIds[cursor.getPosition()] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Replays a single call, or the collected calls of a batch.
+     *
+     * @return false if the call can't be replayed against the replay shelter.
+     */
+    private boolean replay(ProviderTrace.Record record, ArrayList<ContentProviderOperation> batch)
+            throws RemoteException, OperationApplicationException {
+        if (record.operation == ProviderTrace.OP_APPLY_BATCH) {
+            if (batch.isEmpty()) {
+                return false;
+            }
+            contentResolver.applyBatch(PetContract.CONTENT_AUTHORITY, batch);
+            return true;
+        }
+        if (record.operation == ProviderTrace.OP_CALL) {
+            Bundle extras = new Bundle();
+            extras.putString(PetContract.EXTRA_SHELTER, REPLAY_SHELTER);
+            if (record.projection != null && record.projection.length > 0) {
+                extras.putString(PetContract.EXTRA_COLUMN, record.projection[0]);
+            }
+            contentResolver.call(PetEntry.CONTENT_URI, record.pattern,
+                    record.argCount > 0 ? String.valueOf(randomPetId()) : null, extras);
+            return true;
+        }
+
+        Uri uri = toReplayUri(record.pattern);
+        if (uri == null) {
+            return false;
+        }
+        switch (record.operation) {
+            case ProviderTrace.OP_QUERY:
+                Cursor cursor = contentResolver.query(uri, record.projection, record.selection,
+                        selectionArgs(record), record.sortOrder);
+                if (cursor != null) {
+                    // the rows are only read when the cursor is first accessed
+                    cursor.getCount();
+                    cursor.close();
+                }
+                return true;
+            case ProviderTrace.OP_INSERT:
+                contentResolver.insert(uri, values(record.columns));
+                return true;
+            case ProviderTrace.OP_BULK_INSERT:
+                ContentValues[] rows = new ContentValues[record.rows];
+                for (int i = 0; i < rows.length; i++) {
+                    rows[i] = values(record.columns);
+                }
+                contentResolver.bulkInsert(uri, rows);
+                return true;
+            case ProviderTrace.OP_UPDATE:
+                contentResolver.update(uri, values(record.columns), record.selection, selectionArgs(record));
+                return true;
+            case ProviderTrace.OP_DELETE:
+                contentResolver.delete(uri, record.selection, selectionArgs(record));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the operation for a call that was made by a batch, or null if it can't be
+     * replayed against the replay shelter.
+     */
+    private ContentProviderOperation toBatchOperation(ProviderTrace.Record record) {
+        Uri uri = toReplayUri(record.pattern);
+        if (uri == null) {
+            return null;
+        }
+        switch (record.operation) {
+            case ProviderTrace.OP_INSERT:
+                return ContentProviderOperation.newInsert(uri)
+                        .withValues(values(record.columns))
+                        .build();
+            case ProviderTrace.OP_UPDATE:
+                return ContentProviderOperation.newUpdate(uri)
+                        .withValues(values(record.columns))
+                        .withSelection(record.selection, selectionArgs(record))
+                        .build();
+            case ProviderTrace.OP_DELETE:
+                return ContentProviderOperation.newDelete(uri)
+                        .withSelection(record.selection, selectionArgs(record))
+                        .build();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Turns a URI pattern into a URI of the replay shelter, filling in the placeholders.
+     *
+     * @return the URI, or null if the route has no shelter specific variant.
+     */
+    private Uri toReplayUri(String pattern) {
+        int queryStart = pattern.indexOf('?');
+        String path = queryStart < 0 ? pattern : pattern.substring(0, queryStart);
+        List<String> segments = new ArrayList<>(Arrays.asList(path.split("/")));
+
+        if (segments.size() > 1 && segments.get(0).equals(PetContract.PATH_SHELTERS)
+                && segments.get(1).equals(ProviderTrace.TEXT)) {
+            segments.remove(0);
+            segments.remove(0);
+        }
+        // only the pets, a single pet and its weights have a route per shelter
+        if (segments.isEmpty() || !segments.get(0).equals(PetContract.PATH_PETS)
+                || (segments.size() > 1 && !segments.get(1).equals(ProviderTrace.NUMBER))
+                || (segments.size() > 2 && !segments.get(2).equals(PetContract.PATH_WEIGHTS))
+                || segments.size() > 3) {
+            return null;
+        }
+
+        Uri.Builder builder = replayPetsUri.buildUpon();
+        for (int i = 1; i < segments.size(); i++) {
+            String segment = segments.get(i);
+            builder.appendPath(segment.equals(ProviderTrace.NUMBER) ? String.valueOf(randomPetId()) : segment);
+        }
+        if (queryStart >= 0) {
+            for (String parameter : pattern.substring(queryStart + 1).split("&")) {
+                int equals = parameter.indexOf('=');
+                String name = parameter.substring(0, equals);
+                String value = parameter.substring(equals + 1);
+                if (name.equals(PetEntry.PARAM_EXPECTED_VERSION)) {
+                    // the version of a random pet is unknown, update it unconditionally
+                    continue;
+                }
+                builder.appendQueryParameter(name, value.equals(ProviderTrace.NUMBER)
+                        ? String.valueOf(random.nextInt(MAX_WEIGHT + 1)) : value);
+            }
+        }
+        return builder.build();
+    }
+
+    private String[] selectionArgs(ProviderTrace.Record record) {
+        if (record.argCount == 0) {
+            return null;
+        }
+        String[] args = new String[record.argCount];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = String.valueOf(random.nextInt(MAX_WEIGHT + 1));
+        }
+        return args;
+    }
+
+    /**
+     * Returns synthetic values for the given columns. Columns the provider maintains itself
+     * are left out.
+     */
+    private ContentValues values(String[] columns) {
+        ContentValues values = new ContentValues();
+        if (columns == null) {
+            return values;
+        }
+        for (String column : columns) {
+            if (column.equals(PetEntry.COLUMN_PET_NAME)) {
+                values.put(column, distributions.names[random.nextInt(distributions.names.length)]);
+            } else if (column.equals(PetEntry.COLUMN_PET_BREED)) {
+                values.put(column, distributions.breeds[random.nextInt(distributions.breeds.length)]);
+            } else if (column.equals(PetEntry.COLUMN_PET_GENDER)) {
+                values.put(column, random.nextInt(3));
+            } else if (column.equals(PetEntry.COLUMN_PET_WEIGHT)) {
+                values.put(column, random.nextInt(MAX_WEIGHT + 1));
+            } else if (column.equals(PetEntry.COLUMN_PET_ADOPTED)) {
+                values.put(column, random.nextBoolean() ? 1 : 0);
+            }
+        }
+        return values;
+    }
+
+    private long randomPetId() {
+        // a missing pet is looked up when the replay shelter is empty
+        return petIds.length == 0 ? 1 : petIds[random.nextInt(petIds.length)];
+    }
+
+    private static void appendStats(StringBuilder report, String name, Stats stats) {
+        if (stats.count == 0 && stats.skipped == 0 && stats.failed == 0) {
+            return;
+        }
+        long[] replayed = Arrays.copyOf(stats.replayedNanos, stats.count);
+        long[] recorded = Arrays.copyOf(stats.recordedMicros, stats.count);
+        Arrays.sort(replayed);
+        Arrays.sort(recorded);
+        report.append(String.format(Locale.US, "%s: %d calls, %d / %d / %d (%d)",
+                name, stats.count,
+                percentile(replayed, 50) / 1000,
+                percentile(replayed, 90) / 1000,
+                percentile(replayed, 99) / 1000,
+                percentile(recorded, 50)));
+        if (stats.skipped > 0 || stats.failed > 0) {
+            report.append(String.format(Locale.US, ", %d skipped, %d failed", stats.skipped, stats.failed));
+        }
+        report.append('\n');
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+}
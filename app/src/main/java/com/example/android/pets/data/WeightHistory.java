@@ -0,0 +1,180 @@
+package com.example.android.pets.data;
+
+import android.annotation.SuppressLint;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static com.example.android.pets.data.PetContract.WeightEntry;
+
+/**
+ * {@link WeightHistory} appends weight measurements and keeps the daily, weekly and monthly
+ * rollups up to date. A new measurement only touches one bucket per resolution, so chart
+ * queries never have to aggregate the raw measurements.
+ * <p>
+ * All methods must be called inside a transaction that also contains the pet write.
+ */
+final class WeightHistory {
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final String[] RESOLUTIONS = {
+            WeightEntry.RESOLUTION_DAY,
+            WeightEntry.RESOLUTION_WEEK,
+            WeightEntry.RESOLUTION_MONTH};
+
+    private static final String SQL_UPDATE_ROLLUP =
+            "UPDATE " + WeightEntry.ROLLUP_TABLE_NAME + " SET "
+                    + WeightEntry.COLUMN_COUNT + " = " + WeightEntry.COLUMN_COUNT + " + 1, "
+                    + WeightEntry.COLUMN_SUM + " = " + WeightEntry.COLUMN_SUM + " + ?1, "
+                    + WeightEntry.COLUMN_MIN_WEIGHT + " = MIN(" + WeightEntry.COLUMN_MIN_WEIGHT + ", ?1), "
+                    + WeightEntry.COLUMN_MAX_WEIGHT + " = MAX(" + WeightEntry.COLUMN_MAX_WEIGHT + ", ?1)"
+                    + " WHERE " + WeightEntry.COLUMN_PET_ID + " = ?2"
+                    + " AND " + WeightEntry.COLUMN_RESOLUTION + " = ?3"
+                    + " AND " + WeightEntry.COLUMN_BUCKET_START + " = ?4";
+
+    private static final String SQL_QUERY_RAW =
+            "SELECT " + WeightEntry.COLUMN_TIMESTAMP + ", "
+                    + WeightEntry.COLUMN_WEIGHT + ", "
+                    + WeightEntry.COLUMN_WEIGHT + " AS " + WeightEntry.COLUMN_MIN_WEIGHT + ", "
+                    + WeightEntry.COLUMN_WEIGHT + " AS " + WeightEntry.COLUMN_MAX_WEIGHT + ", "
+                    + "1 AS " + WeightEntry.COLUMN_COUNT
+                    + " FROM " + WeightEntry.TABLE_NAME
+                    + " WHERE " + WeightEntry.COLUMN_PET_ID + " = ?"
+                    + " AND " + WeightEntry.COLUMN_TIMESTAMP + " BETWEEN ? AND ?"
+                    + " ORDER BY " + WeightEntry.COLUMN_TIMESTAMP
+                    + " LIMIT ?";
+
+    private static final String SQL_QUERY_ROLLUP =
+            "SELECT " + WeightEntry.COLUMN_BUCKET_START + " AS " + WeightEntry.COLUMN_TIMESTAMP + ", "
+                    + "CAST(" + WeightEntry.COLUMN_SUM + " AS REAL) / " + WeightEntry.COLUMN_COUNT
+                    + " AS " + WeightEntry.COLUMN_WEIGHT + ", "
+                    + WeightEntry.COLUMN_MIN_WEIGHT + ", "
+                    + WeightEntry.COLUMN_MAX_WEIGHT + ", "
+                    + WeightEntry.COLUMN_COUNT
+                    + " FROM " + WeightEntry.ROLLUP_TABLE_NAME
+                    + " WHERE " + WeightEntry.COLUMN_PET_ID + " = ?"
+                    + " AND " + WeightEntry.COLUMN_RESOLUTION + " = ?"
+                    + " AND " + WeightEntry.COLUMN_BUCKET_START + " BETWEEN ? AND ?"
+                    + " ORDER BY " + WeightEntry.COLUMN_BUCKET_START
+                    + " LIMIT ?";
+
+    private WeightHistory() {
+    }
+
+    /**
+     * Appends a measurement for the given pet and adds it to the rollups.
+     */
+    static void record(SQLiteDatabase db, long petId, int weight, long timestamp) {
+        ContentValues values = new ContentValues();
+        values.put(WeightEntry.COLUMN_PET_ID, petId);
+        values.put(WeightEntry.COLUMN_TIMESTAMP, timestamp);
+        values.put(WeightEntry.COLUMN_WEIGHT, weight);
+        long rowId = db.insertWithOnConflict(WeightEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+        if (rowId == -1) {
+            // there already is a measurement for this pet and millisecond
+            return;
+        }
+
+        SQLiteStatement update = db.compileStatement(SQL_UPDATE_ROLLUP);
+        try {
+            for (String resolution : RESOLUTIONS) {
+                long bucketStart = getBucketStart(resolution, timestamp);
+                update.bindLong(1, weight);
+                update.bindLong(2, petId);
+                update.bindString(3, resolution);
+                update.bindLong(4, bucketStart);
+                if (update.executeUpdateDelete() == 0) {
+                    ContentValues rollup = new ContentValues();
+                    rollup.put(WeightEntry.COLUMN_PET_ID, petId);
+                    rollup.put(WeightEntry.COLUMN_RESOLUTION, resolution);
+                    rollup.put(WeightEntry.COLUMN_BUCKET_START, bucketStart);
+                    rollup.put(WeightEntry.COLUMN_COUNT, 1);
+                    rollup.put(WeightEntry.COLUMN_SUM, weight);
+                    rollup.put(WeightEntry.COLUMN_MIN_WEIGHT, weight);
+                    rollup.put(WeightEntry.COLUMN_MAX_WEIGHT, weight);
+                    db.insert(WeightEntry.ROLLUP_TABLE_NAME, null, rollup);
+                }
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * Deletes the whole history of the given pet.
+     */
+    static void delete(SQLiteDatabase db, long petId) {
+        String[] args = {String.valueOf(petId)};
+        db.delete(WeightEntry.TABLE_NAME, WeightEntry.COLUMN_PET_ID + " = ?", args);
+        db.delete(WeightEntry.ROLLUP_TABLE_NAME, WeightEntry.COLUMN_PET_ID + " = ?", args);
+    }
+
+    /**
+     * Deletes the history of all pets that no longer exist in the given pet tables.
+     */
+    static void deleteOrphans(SQLiteDatabase db, String petIdsQuery) {
+        String orphans = WeightEntry.COLUMN_PET_ID + " NOT IN (" + petIdsQuery + ")";
+        db.delete(WeightEntry.TABLE_NAME, orphans, null);
+        db.delete(WeightEntry.ROLLUP_TABLE_NAME, orphans, null);
+    }
+
+    /**
+     * Queries the history of a pet in the given resolution and time range.
+     *
+     * @param limit              the maximum number of rows, or null for all of them.
+     * @param cancellationSignal abandons the query when cancelled, may be null. It is only
+     *                           ever given on API 16 and above.
+     */
+    @SuppressLint("NewApi")
+    static Cursor query(SQLiteDatabase db, long petId, String resolution, long from, long to,
+                        String limit, CancellationSignal cancellationSignal) {
+        // a negative limit is no limit, so the SQL stays the same either way
+        String rowLimit = limit != null ? limit : "-1";
+        String sql;
+        String[] args;
+        if (resolution == null || WeightEntry.RESOLUTION_RAW.equals(resolution)) {
+            sql = SQL_QUERY_RAW;
+            args = new String[]{
+                    String.valueOf(petId), String.valueOf(from), String.valueOf(to), rowLimit};
+        } else {
+            // align the range to the buckets, so the bucket containing "from" is part of the result
+            sql = SQL_QUERY_ROLLUP;
+            args = new String[]{
+                    String.valueOf(petId), resolution,
+                    String.valueOf(getBucketStart(resolution, from)), String.valueOf(to), rowLimit};
+        }
+        if (cancellationSignal == null) {
+            return db.rawQuery(sql, args);
+        }
+        return db.rawQuery(sql, args, cancellationSignal);
+    }
+
+    /**
+     * Returns the start of the UTC day, week (starting on Monday) or month that contains the
+     * given time.
+     */
+    static long getBucketStart(String resolution, long timestamp) {
+        long day = Math.max(0, timestamp) / DAY_MILLIS;
+        switch (resolution) {
+            case WeightEntry.RESOLUTION_DAY:
+                return day * DAY_MILLIS;
+            case WeightEntry.RESOLUTION_WEEK:
+                // the epoch started on a Thursday
+                return (day - (day + 3) % 7) * DAY_MILLIS;
+            case WeightEntry.RESOLUTION_MONTH:
+                Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+                calendar.setTimeInMillis(day * DAY_MILLIS);
+                calendar.set(Calendar.DAY_OF_MONTH, 1);
+                return calendar.getTimeInMillis();
+            default:
+                throw new IllegalArgumentException("Unknown resolution " + resolution);
+        }
+    }
+}
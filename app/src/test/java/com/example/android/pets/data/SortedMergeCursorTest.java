@@ -0,0 +1,187 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SortedMergeCursorTest {
+
+    private static final String[] COLUMNS = {"_id", "value"};
+
+    /**
+     * Returns a cursor with the given values, and the ids 1, 2, 3...
+     */
+    private static Cursor cursor(Object... values) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (int i = 0; i < values.length; i++) {
+            cursor.addRow(new Object[]{i + 1, values[i]});
+        }
+        return cursor;
+    }
+
+    private static Object[] values(Cursor cursor) {
+        Object[] values = new Object[cursor.getCount()];
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            int column = cursor.getColumnIndexOrThrow("value");
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    values[cursor.getPosition()] = null;
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    values[cursor.getPosition()] = cursor.getLong(column);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    values[cursor.getPosition()] = cursor.getDouble(column);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    values[cursor.getPosition()] = cursor.getBlob(column);
+                    break;
+                default:
+                    values[cursor.getPosition()] = cursor.getString(column);
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void interleavesTheRowsOfTheCursors() {
+        Cursor merged = new SortedMergeCursor(new Cursor[]{
+                cursor("a", "c", "e"), cursor("b", "d")}, "value");
+        assertArrayEquals(new Object[]{"a", "b", "c", "d", "e"}, values(merged));
+    }
+
+    @Test
+    public void ranksNullsThenNumbersThenTextThenBlobs() {
+        byte[] blob = {1, 2};
+        Cursor merged = new SortedMergeCursor(new Cursor[]{
+                cursor(null, 2L, "b"), cursor(1.5, "a", blob)}, "value");
+        assertArrayEquals(new Object[]{null, 1.5, 2L, "a", "b", blob}, values(merged));
+    }
+
+    @Test
+    public void comparesIntegersAndFloatsByValue() {
+        Cursor merged = new SortedMergeCursor(new Cursor[]{
+                cursor(1L, 3L), cursor(2.5, 2.75)}, "value ASC");
+        assertArrayEquals(new Object[]{1L, 2.5, 2.75, 3L}, values(merged));
+    }
+
+    @Test
+    public void binaryCollationSortsUpperCaseFirst() {
+        Cursor merged = new SortedMergeCursor(new Cursor[]{
+                cursor("Banana", "apple"), cursor("Cherry", "date")}, "value COLLATE BINARY");
+        assertArrayEquals(new Object[]{"Banana", "Cherry", "apple", "date"}, values(merged));
+    }
+
+    @Test
+    public void noCaseCollationFoldsAsciiLetters() {
+        Cursor merged = new SortedMergeCursor(new Cursor[]{
+                cursor("apple", "Cherry"), cursor("Banana", "date")}, "value COLLATE NOCASE");
+        assertArrayEquals(new Object[]{"apple", "Banana", "Cherry", "date"}, values(merged));
+    }
+
+    @Test
+    public void noCaseCollationOnlyFoldsAscii() {
+        assertEquals(0, SortedMergeCursor.compareText("ABC", "abc", true));
+        // like SQLite, NOCASE leaves the letters outside of ASCII alone
+        assertTrue(SortedMergeCursor.compareText("É", "é", true) < 0);
+    }
+
+    @Test
+    public void comparesTextByCodePoint() {
+        // U+1F600 is a surrogate pair, which String.compareTo() sorts before U+FFFD
+        assertTrue(SortedMergeCursor.compareText("�", "😀", false) < 0);
+        assertTrue(SortedMergeCursor.compareText("ab", "abc", false) < 0);
+        assertEquals(0, SortedMergeCursor.compareText("abc", "abc", false));
+    }
+
+    @Test
+    public void comparesBlobsUnsigned() {
+        assertTrue(SortedMergeCursor.compareBlobs(new byte[]{1}, new byte[]{(byte) 0xff}) < 0);
+        assertTrue(SortedMergeCursor.compareBlobs(new byte[]{1}, new byte[]{1, 0}) < 0);
+        assertEquals(0, SortedMergeCursor.compareBlobs(new byte[]{1, 2}, new byte[]{1, 2}));
+    }
+
+    @Test
+    public void descendingTermsReverseTheOrder() {
+        Cursor merged = new SortedMergeCursor(new Cursor[]{
+                cursor(9L, 3L), cursor(7L, 1L)}, "value DESC");
+        assertArrayEquals(new Object[]{9L, 7L, 3L, 1L}, values(merged));
+    }
+
+    @Test
+    public void laterTermsBreakTies() {
+        MatrixCursor first = new MatrixCursor(new String[]{"_id", "gender", "value"});
+        first.addRow(new Object[]{1, 0, "b"});
+        first.addRow(new Object[]{2, 1, "a"});
+        MatrixCursor second = new MatrixCursor(new String[]{"_id", "gender", "value"});
+        second.addRow(new Object[]{1, 0, "a"});
+        second.addRow(new Object[]{2, 1, "c"});
+        Cursor merged = new SortedMergeCursor(new Cursor[]{first, second}, "gender, value DESC");
+        assertArrayEquals(new Object[]{"b", "a", "c", "a"}, values(merged));
+    }
+
+    @Test
+    public void equalRowsKeepTheOrderOfTheCursors() {
+        Cursor merged = new SortedMergeCursor(new Cursor[]{cursor("a"), cursor("a")}, "value");
+        merged.moveToFirst();
+        assertEquals(0, merged.getLong(0) & 0xffff);
+        merged.moveToNext();
+        assertEquals(1, merged.getLong(0) & 0xffff);
+    }
+
+    @Test
+    public void skipsEmptyCursors() {
+        Cursor merged = new SortedMergeCursor(new Cursor[]{cursor(), cursor("a"), cursor()}, "value");
+        assertArrayEquals(new Object[]{"a"}, values(merged));
+    }
+
+    @Test
+    public void mergesNothing() {
+        assertEquals(0, new SortedMergeCursor(new Cursor[]{cursor(), cursor()}, "value").getCount());
+        assertEquals(0, new SortedMergeCursor(new Cursor[0], null).getCount());
+    }
+
+    @Test
+    public void packsTheCursorIndexIntoTheId() {
+        Cursor merged = new SortedMergeCursor(new Cursor[]{cursor("a"), cursor("b")}, "value");
+        merged.moveToFirst();
+        assertEquals(1L << SortedMergeCursor.CURSOR_BITS, merged.getLong(0));
+        assertEquals(String.valueOf(1L << SortedMergeCursor.CURSOR_BITS), merged.getString(0));
+        merged.moveToNext();
+        assertEquals((1L << SortedMergeCursor.CURSOR_BITS) | 1, merged.getLong(0));
+        // the other columns are passed through
+        assertEquals("b", merged.getString(1));
+    }
+
+    @Test
+    public void rejectsExpressions() {
+        try {
+            SortedMergeCursor.checkSortOrder("lower(value)");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            SortedMergeCursor.checkSortOrder("value COLLATE LOCALIZED");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        SortedMergeCursor.checkSortOrder("value collate nocase desc, _id");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSortColumnsOutsideOfTheProjection() {
+        new SortedMergeCursor(new Cursor[]{cursor("a")}, "weight");
+    }
+}